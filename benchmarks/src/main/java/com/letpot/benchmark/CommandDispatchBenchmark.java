@@ -0,0 +1,124 @@
+package com.letpot.benchmark;
+
+import com.letpot.dto.LetPotDeviceDto;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.service.LetPotMqttService;
+import com.letpot.service.LetPotService;
+import com.letpot.util.ApiClientFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Concurrent command dispatch through LetPotService against the embedded broker and mock REST API.
+// Commands complete on broker acknowledgement; there are no devices to echo them.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class CommandDispatchBenchmark {
+
+    private static final int BURST = 64;
+    // A schedule-sized payload: nine packets.
+    private static final byte[] LARGE_COMMAND = new byte[1000];
+
+    @Param({"1", "8"})
+    private int accounts;
+
+    @Param({"16"})
+    private int devicesPerAccount;
+
+    private LocalLetPotBackend backend;
+    private LetPotMqttService mqttService;
+    private LetPotService[] services;
+    private String[][] deviceIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        backend = new LocalLetPotBackend(devicesPerAccount);
+        LetPotMqttConfig config = new LetPotMqttConfig();
+        config.setBrokerUrl(backend.brokerUrl());
+        mqttService = new LetPotMqttService(config);
+        services = new LetPotService[accounts];
+        deviceIds = new String[accounts][];
+        for (int i = 0; i < accounts; i++) {
+            services[i] = new LetPotService(
+                    ApiClientFactory.createLetPotApiClient(backend.apiBaseUrl(), LetPotMetrics.noop()), mqttService);
+            services[i].login(LocalLetPotBackend.email(i), "password");
+            List<LetPotDeviceDto> devices = services[i].getDevices();
+            deviceIds[i] = devices.stream().map(LetPotDeviceDto::getDeviceId).toArray(String[]::new);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (LetPotService service : services) {
+            service.close();
+        }
+        mqttService.close();
+        backend.close();
+    }
+
+    // One blocking command at a time per thread, as turnOnDevice() callers do.
+    @Benchmark
+    public void blockingCommand() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int account = random.nextInt(accounts);
+        String[] devices = deviceIds[account];
+        services[account].turnOnDevice(devices[random.nextInt(devices.length)], 30);
+    }
+
+    // One blocking multi-packet command at a time per thread; its packets go out as one pipelined burst.
+    @Benchmark
+    public void blockingLargeCommand() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int account = random.nextInt(accounts);
+        String[] devices = deviceIds[account];
+        mqttService.publishCommandAsync(devices[random.nextInt(devices.length)], LocalLetPotBackend.email(account),
+                LocalLetPotBackend.userId(account), LARGE_COMMAND).join();
+    }
+
+    // Bursts of async commands to random devices, waiting for the whole burst.
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void asyncBurst() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[BURST];
+        for (int i = 0; i < BURST; i++) {
+            int account = random.nextInt(accounts);
+            String[] devices = deviceIds[account];
+            CompletableFuture<LetPotCommandStatus> future = services[account]
+                    .sendPumpCommandAsync(devices[random.nextInt(devices.length)], LetPotPumpCommand.on(30));
+            futures[i] = future;
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    // Uncached device list fetch over HTTP, including JSON mapping.
+    @Benchmark
+    public List<LetPotDeviceDto> refreshDevices() {
+        return services[ThreadLocalRandom.current().nextInt(accounts)].refreshDevices();
+    }
+}
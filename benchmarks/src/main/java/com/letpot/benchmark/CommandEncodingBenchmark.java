@@ -0,0 +1,69 @@
+package com.letpot.benchmark;
+
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.util.LetPotCommandCodec;
+import com.letpot.util.LetPotPacketFramer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Building pump command bytes, alone and together with framing, i.e. the CPU work behind one turnOnDevice().
+// Durations cycle through the range LetPotPumpCommand caches, as a scheduler's would.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandEncodingBenchmark {
+
+    private final byte[] commandBuffer = new byte[LetPotCommandCodec.MAX_COMMAND_LENGTH];
+    private final byte[] packetBuffer = new byte[LetPotPacketFramer.MAX_ENCODED_PACKET_LENGTH];
+    private int durationSeconds = 1;
+    private int messageId;
+
+    // The hand-filled array buildPumpCommand used before the codec.
+    @Benchmark
+    public byte[] legacyPumpCommand() {
+        durationSeconds = nextDuration();
+        byte[] command = new byte[LetPotCommandCodec.PUMP_COMMAND_LENGTH];
+        command[0] = 65;
+        command[1] = 2;
+        command[2] = 1;
+        command[4] = (byte) ((durationSeconds >> 8) & 0xFF);
+        command[5] = (byte) (durationSeconds & 0xFF);
+        return command;
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        durationSeconds = nextDuration();
+        return LetPotCommandCodec.encode(LetPotPumpCommand.on(durationSeconds), commandBuffer, 0);
+    }
+
+    @Benchmark
+    public byte[] cachedBytes() {
+        durationSeconds = nextDuration();
+        return LetPotCommandCodec.toBytes(LetPotPumpCommand.on(durationSeconds));
+    }
+
+    @Benchmark
+    public int cachedBytesFramed() {
+        durationSeconds = nextDuration();
+        byte[] command = LetPotCommandCodec.toBytes(LetPotPumpCommand.on(durationSeconds));
+        messageId = (messageId + 1) & 0xFF;
+        return LetPotPacketFramer.encodePacket(command, command.length, 0, messageId, packetBuffer, 0);
+    }
+
+    private int nextDuration() {
+        return durationSeconds == LetPotPumpCommand.CACHED_DURATION_SECONDS ? 1 : durationSeconds + 1;
+    }
+}
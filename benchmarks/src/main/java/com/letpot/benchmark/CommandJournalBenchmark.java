@@ -0,0 +1,83 @@
+package com.letpot.benchmark;
+
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.util.LetPotCommandCodec;
+import com.letpot.util.LetPotCommandJournal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// Journal cost per command: append before publish and ack after, with or without waiting for the group fsync.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandJournalBenchmark {
+
+    private static final byte[] COMMAND = LetPotCommandCodec.toBytes(LetPotPumpCommand.on(30));
+
+    @Param({"1000"})
+    private int devices;
+
+    private String[] deviceIds;
+    private Path file;
+    private LetPotCommandJournal journal;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        deviceIds = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = LetPotFixtures.deviceId(LocalLetPotBackend.userId(0), i);
+        }
+        file = Files.createTempFile("letpot-bench", ".journal");
+        Files.delete(file);
+        journal = new LetPotCommandJournal(file, 64 * 1024 * 1024, Duration.ofMillis(5));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long appendAndAck() {
+        long seq = journal.append(LocalLetPotBackend.userId(0), LocalLetPotBackend.email(0),
+                nextDevice(), "pump", COMMAND);
+        journal.markAcked(seq, (int) seq & 0xFF);
+        return seq;
+    }
+
+    @Benchmark
+    public long appendDurableAndAck() {
+        long seq = journal.append(LocalLetPotBackend.userId(0), LocalLetPotBackend.email(0),
+                nextDevice(), "pump", COMMAND);
+        journal.whenDurable().join();
+        journal.markAcked(seq, (int) seq & 0xFF);
+        return seq;
+    }
+
+    private String nextDevice() {
+        next = next + 1 == devices ? 0 : next + 1;
+        return deviceIds[next];
+    }
+}
@@ -0,0 +1,122 @@
+package com.letpot.benchmark;
+
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotDailyWatering;
+import com.letpot.model.LetPotDeviceEvent;
+import com.letpot.model.LetPotHistoryConfig;
+import com.letpot.util.LetPotDeviceHistory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Device history over months of fleet activity: each device reports its status hourly and is watered four times a
+// day. Measures appends, a full-history range query for one device and 30 days of daily watering totals.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceHistoryBenchmark {
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"1000"})
+    private int devices;
+
+    @Param({"90"})
+    private int days;
+
+    private String[] deviceIds;
+    private Path directory;
+    private LetPotDeviceHistory history;
+    private long startMillis;
+    private long endMillis;
+    private long appendMillis;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        deviceIds = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = LetPotFixtures.deviceId(LocalLetPotBackend.userId(0), i);
+        }
+        directory = Files.createTempDirectory("letpot-bench-history");
+        LetPotHistoryConfig config = new LetPotHistoryConfig();
+        config.setDirectory(directory);
+        config.setRetention(Duration.ofDays(days + 1));
+        history = new LetPotDeviceHistory(config);
+
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        startMillis = today.minusDays(days).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        endMillis = today.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        long fillStart = System.nanoTime();
+        for (long hour = startMillis; hour < endMillis; hour += HOUR_MILLIS) {
+            boolean watering = (hour / HOUR_MILLIS) % 6 == 0;
+            for (int i = 0; i < devices; i++) {
+                long millis = hour + i * 50L;
+                if (watering) {
+                    history.append(LetPotDeviceEvent.command(deviceIds[i], millis, "pump_on", LetPotCommandStatus.SENT, 40));
+                }
+                history.append(LetPotDeviceEvent.status(deviceIds[i], millis + 30, watering ? 1 : 0, false,
+                        watering ? 600 : 0, 0, 0));
+            }
+        }
+        System.out.printf("%nFilled %d events in %d ms: %d bytes in %d segments, %.1f bytes per event%n",
+                history.getEventCount(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fillStart),
+                history.getSizeBytes(), history.getSegmentCount(), (double) history.getSizeBytes() / history.getEventCount());
+        appendMillis = endMillis;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        history.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        appendMillis += 10;
+        history.append(LetPotDeviceEvent.status(nextDevice(), appendMillis, 1, false, 600, 0, 0));
+    }
+
+    @Benchmark
+    public void queryFullHistory(Blackhole blackhole) {
+        history.forEach(nextDevice(), startMillis, endMillis, blackhole::consume);
+    }
+
+    @Benchmark
+    public List<LetPotDailyWatering> dailyWatering30Days() {
+        LocalDate to = LocalDate.now(ZoneOffset.UTC).minusDays(1);
+        return history.dailyWatering(nextDevice(), to.minusDays(29), to);
+    }
+
+    private String nextDevice() {
+        next = next + 1 == devices ? 0 : next + 1;
+        return deviceIds[next];
+    }
+}
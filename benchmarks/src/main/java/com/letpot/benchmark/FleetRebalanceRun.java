@@ -0,0 +1,149 @@
+package com.letpot.benchmark;
+
+import com.letpot.client.LetPotApiClient;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotFleetConfig;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.service.LetPotFleetManager;
+import com.letpot.service.LetPotInMemoryMembership;
+import com.letpot.service.LetPotMqttService;
+import com.letpot.service.LetPotService;
+import com.letpot.util.ApiClientFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Spreads accounts over in-process shards with the fleet manager on the local backend, then adds a node and
+ * removes one. After each step it prints how many sessions every node holds, how many accounts moved against the
+ * 1/n ideal, how long the rebalance took including logins, and checks that every account has exactly one session:
+ * {@code java -cp target/benchmarks.jar com.letpot.benchmark.FleetRebalanceRun accounts=400 nodes=4 virtualNodes=512}
+ */
+public class FleetRebalanceRun {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("accounts", "400");
+        options.put("nodes", "4");
+        options.put("virtualNodes", "512");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !options.containsKey(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("Unknown option " + arg + "; expected one of " + options.keySet());
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.println("Options: " + options);
+        int accounts = Integer.parseInt(options.get("accounts"));
+        int nodes = Integer.parseInt(options.get("nodes"));
+        LetPotFleetConfig config = new LetPotFleetConfig();
+        config.setVirtualNodes(Integer.parseInt(options.get("virtualNodes")));
+
+        try (LocalLetPotBackend backend = new LocalLetPotBackend(2)) {
+            LetPotApiClient apiClient = ApiClientFactory.createLetPotApiClient(backend.apiBaseUrl(), LetPotMetrics.noop());
+            LetPotMqttConfig mqttConfig = new LetPotMqttConfig();
+            mqttConfig.setBrokerUrl(backend.brokerUrl());
+            LetPotMqttService mqttService = new LetPotMqttService(mqttConfig);
+            Map<String, String> credentials = new LinkedHashMap<>();
+            for (int i = 0; i < accounts; i++) {
+                credentials.put(LocalLetPotBackend.email(i), "password");
+            }
+            LetPotInMemoryMembership membership = new LetPotInMemoryMembership();
+            List<LetPotFleetManager> managers = new ArrayList<>();
+
+            long start = System.nanoTime();
+            for (int n = 0; n < nodes; n++) {
+                LetPotFleetManager manager = new LetPotFleetManager("node-" + n, membership, apiClient, mqttService,
+                        config, LetPotMetrics.noop());
+                manager.addAccounts(credentials);
+                managers.add(manager);
+            }
+            for (LetPotFleetManager manager : managers) {
+                manager.start();
+            }
+            settle(managers);
+            report("Initial " + nodes + " nodes", managers, credentials, null, start);
+
+            Map<String, String> owners = owners(managers, credentials);
+            start = System.nanoTime();
+            LetPotFleetManager joined = new LetPotFleetManager("node-" + nodes, membership, apiClient, mqttService,
+                    config, LetPotMetrics.noop());
+            joined.addAccounts(credentials);
+            managers.add(joined);
+            joined.start();
+            settle(managers);
+            report("node-" + nodes + " joined", managers, credentials, owners, start);
+
+            owners = owners(managers, credentials);
+            start = System.nanoTime();
+            managers.remove(0).close();
+            settle(managers);
+            report("node-0 left", managers, credentials, owners, start);
+
+            for (LetPotFleetManager manager : managers) {
+                manager.close();
+            }
+            mqttService.close();
+        }
+        System.exit(0);
+    }
+
+    // A rebalance requested now runs after any triggered by the membership change, so joining it waits for those.
+    private static void settle(List<LetPotFleetManager> managers) {
+        CompletableFuture.allOf(managers.stream().map(LetPotFleetManager::rebalance).toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static Map<String, String> owners(List<LetPotFleetManager> managers, Map<String, String> credentials) {
+        Map<String, String> owners = new HashMap<>();
+        for (String email : credentials.keySet()) {
+            owners.put(email, managers.get(0).ownerOf(email));
+        }
+        return owners;
+    }
+
+    private static void report(String step, List<LetPotFleetManager> managers, Map<String, String> credentials,
+                               Map<String, String> previousOwners, long startNanos) {
+        double millis = (System.nanoTime() - startNanos) / 1e6;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        StringBuilder counts = new StringBuilder();
+        for (LetPotFleetManager manager : managers) {
+            int owned = manager.getOwnedAccounts().size();
+            min = Math.min(min, owned);
+            max = Math.max(max, owned);
+            counts.append(' ').append(manager.getNodeId()).append('=').append(owned);
+        }
+        double mean = (double) credentials.size() / managers.size();
+        int sessions = 0;
+        int duplicates = 0;
+        int moved = 0;
+        for (String email : credentials.keySet()) {
+            int holders = 0;
+            for (LetPotFleetManager manager : managers) {
+                if (manager.getSession(email).map(LetPotService::getCredentials).isPresent()) {
+                    holders++;
+                }
+            }
+            sessions += holders > 0 ? 1 : 0;
+            duplicates += holders > 1 ? 1 : 0;
+            if (previousOwners != null && !previousOwners.get(email).equals(managers.get(0).ownerOf(email))) {
+                moved++;
+            }
+        }
+        System.out.printf("%n== %s in %.0f ms%nSessions:%s%nmin=%d max=%d mean=%.1f max/mean=%.2f%n",
+                step, millis, counts, min, max, mean, max / mean);
+        System.out.printf("Accounts with a session=%d/%d, with more than one=%d%n", sessions, credentials.size(), duplicates);
+        if (previousOwners != null) {
+            System.out.printf("Moved=%d (%.1f%%), ideal %.1f%%%n", moved, 100.0 * moved / credentials.size(),
+                    100.0 / Math.max(managers.size(), previousOwnerCount(previousOwners)));
+        }
+    }
+
+    private static int previousOwnerCount(Map<String, String> owners) {
+        return (int) owners.values().stream().distinct().count();
+    }
+}
@@ -0,0 +1,86 @@
+package com.letpot.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.letpot.dto.LetPotAuthenticationResponseDto;
+import com.letpot.dto.LetPotDeviceDto;
+import com.letpot.dto.LetPotDeviceListResponseDto;
+import com.letpot.util.LetPotDeviceListDecoder;
+import com.letpot.util.LetPotHttpTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Jackson mapping of REST responses into the DTOs, at fleet sizes from a household to a large installation.
+// Run with -prof gc to compare gc.alloc.rate.norm between the databind and streaming device list paths.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonDecodingBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    private int deviceCount;
+
+    private byte[] deviceListJson;
+    private byte[] authenticationJson;
+    private ObjectMapper objectMapper;
+    private ObjectReader deviceListReader;
+    private LetPotDeviceListDecoder streamingDecoder;
+
+    @Setup
+    public void setUp() {
+        deviceListJson = LetPotFixtures.deviceListJson("user-0", deviceCount);
+        authenticationJson = LetPotFixtures.authenticationJson("user-0", 3600);
+        objectMapper = LetPotHttpTransport.objectMapper();
+        deviceListReader = objectMapper.readerFor(LetPotDeviceListResponseDto.class);
+        streamingDecoder = new LetPotDeviceListDecoder();
+    }
+
+    @Benchmark
+    public LetPotDeviceListResponseDto deviceList() throws IOException {
+        return deviceListReader.readValue(deviceListJson);
+    }
+
+    // One device at a time, as LetPotService.forEachDevice consumes it.
+    @Benchmark
+    public boolean deviceListStreaming(Blackhole blackhole) throws IOException {
+        return streamingDecoder.decode(new ByteArrayInputStream(deviceListJson), blackhole::consume);
+    }
+
+    // Streaming into a retained list, as the device registry does with streamingDecode enabled.
+    @Benchmark
+    public List<LetPotDeviceDto> deviceListStreamingToList() throws IOException {
+        List<LetPotDeviceDto> devices = new ArrayList<>();
+        streamingDecoder.decode(new ByteArrayInputStream(deviceListJson), devices::add);
+        return devices;
+    }
+
+    // A new ObjectMapper per call, as ApiClientFactory used to create per client, pays for DTO introspection every time.
+    @Benchmark
+    public LetPotDeviceListResponseDto deviceListColdMapper() throws IOException {
+        return new ObjectMapper().readValue(deviceListJson, LetPotDeviceListResponseDto.class);
+    }
+
+    @Benchmark
+    public LetPotAuthenticationResponseDto authentication() throws IOException {
+        return objectMapper.readValue(authenticationJson, LetPotAuthenticationResponseDto.class);
+    }
+}
@@ -0,0 +1,57 @@
+package com.letpot.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+// Response bodies shaped like the LetPot REST API, so decoding cost scales like a real fleet.
+public final class LetPotFixtures {
+
+    private static final String[] MODELS = {"LPH-AIR", "LPH-MAX", "LPH-PRO", "LPH-MINI", "ISE05", "ISE06"};
+
+    private LetPotFixtures() {
+    }
+
+    public static String deviceId(String userId, int index) {
+        return userId + "-" + String.format("%05d", index);
+    }
+
+    public static byte[] deviceListJson(String userId, int deviceCount) {
+        StringBuilder json = new StringBuilder(128 + deviceCount * 220);
+        json.append("{\"ok\":true,\"data\":[");
+        for (int i = 0; i < deviceCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            String model = MODELS[i % MODELS.length];
+            json.append("{\"deviceId\":\"").append(deviceId(userId, i))
+                    .append("\",\"deviceName\":\"Garden ").append(i)
+                    .append("\",\"deviceType\":\"").append(model.startsWith("ISE") ? "irrigation" : "garden")
+                    .append("\",\"deviceStatus\":\"").append(i % 7 == 0 ? "offline" : "online")
+                    .append("\",\"deviceModel\":\"").append(model)
+                    .append("\",\"firmwareVersion\":\"1.").append(i % 4).append(".").append(i % 10)
+                    // Fields the client does not map, as the real API sends more than we read.
+                    .append("\",\"timezone\":\"Europe/Amsterdam\",\"bindTime\":").append(1700000000L + i)
+                    .append(",\"shared\":false}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] authenticationJson(String userId, long lifetimeSeconds) {
+        long now = Instant.now().getEpochSecond();
+        String json = "{\"ok\":true,\"data\":{"
+                + "\"token\":{\"token\":\"" + unsignedToken(userId, now + lifetimeSeconds) + "\",\"exp\":" + (now + lifetimeSeconds) + "},"
+                + "\"refreshToken\":{\"token\":\"refresh-" + userId + "\",\"exp\":" + (now + 30L * 24 * 3600) + "}}}";
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The client only reads the uid claim and does not verify the signature, so an alg=none token suffices.
+    public static String unsignedToken(String userId, long expiresEpochSeconds) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String header = encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+        String payload = encoder.encodeToString(("{\"uid\":\"" + userId + "\",\"exp\":" + expiresEpochSeconds + "}")
+                .getBytes(StandardCharsets.UTF_8));
+        return header + "." + payload + ".";
+    }
+}
@@ -0,0 +1,270 @@
+package com.letpot.benchmark;
+
+import com.letpot.client.LetPotApiClient;
+import com.letpot.metrics.InMemoryLetPotMetrics;
+import com.letpot.dto.LetPotDeviceDto;
+import com.letpot.model.LetPotDeviceRegistryConfig;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.service.LetPotMqttService;
+import com.letpot.service.LetPotService;
+import com.letpot.util.ApiClientFactory;
+import com.letpot.util.LetPotLatencyHistogram;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline load test: N accounts with M simulated devices each, on the embedded broker and mock REST API,
+ * driven through LetPotService by closed-loop worker threads with a weighted mix of operations. Reports
+ * throughput and latency percentiles per operation, MQTT connects and reconnects, and heap and GC activity.
+ * Options are key=value arguments, all optional:
+ * <pre>
+ * java -cp target/benchmarks.jar com.letpot.benchmark.LoadTestRun accounts=16 devices=32 threads=32 \
+ *     seconds=30 warmup=5 mix=pump:60,tracked:25,status:10,refresh:5 deviceDelayMs=0 bounceAt=15 bounceMs=2000 \
+ *     ackTimeoutMs=5000
+ * </pre>
+ * pump completes on the broker ack, tracked and status on the device's status echo, and refresh is an
+ * uncached device list call. bounceAt restarts the broker that many seconds into the measurement;
+ * echoes lost with it fail their commands after ackTimeoutMs.
+ */
+public class LoadTestRun {
+
+    private static final String[] OPERATIONS = {"pump", "tracked", "status", "refresh"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("accounts", "8");
+        options.put("devices", "16");
+        options.put("threads", "16");
+        options.put("seconds", "20");
+        options.put("warmup", "5");
+        options.put("mix", "pump:60,tracked:25,status:10,refresh:5");
+        options.put("deviceDelayMs", "0");
+        options.put("bounceAt", "0");
+        options.put("bounceMs", "2000");
+        options.put("ackTimeoutMs", "5000");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !options.containsKey(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("Unknown option " + arg + "; expected one of " + options.keySet());
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.println("Options: " + options);
+        int accounts = Integer.parseInt(options.get("accounts"));
+        int devices = Integer.parseInt(options.get("devices"));
+        int threads = Integer.parseInt(options.get("threads"));
+        int seconds = Integer.parseInt(options.get("seconds"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int[] weights = parseMix(options.get("mix"));
+        int bounceAt = Integer.parseInt(options.get("bounceAt"));
+        long bounceMs = Long.parseLong(options.get("bounceMs"));
+
+        SimulatedDeviceFleet fleet = new SimulatedDeviceFleet(Long.parseLong(options.get("deviceDelayMs")));
+        try (LocalLetPotBackend backend = new LocalLetPotBackend(devices, 3600, fleet)) {
+            InMemoryLetPotMetrics metrics = new InMemoryLetPotMetrics();
+            LetPotApiClient apiClient = ApiClientFactory.createLetPotApiClient(backend.apiBaseUrl(), metrics);
+            LetPotMqttConfig mqttConfig = new LetPotMqttConfig();
+            mqttConfig.setBrokerUrl(backend.brokerUrl());
+            mqttConfig.setAckTimeout(Duration.ofMillis(Long.parseLong(options.get("ackTimeoutMs"))));
+            LetPotMqttService mqttService = new LetPotMqttService(mqttConfig, metrics);
+            LetPotService[] services = new LetPotService[accounts];
+            String[][] deviceIds = new String[accounts][];
+            for (int i = 0; i < accounts; i++) {
+                services[i] = new LetPotService(apiClient, mqttService, new LetPotDeviceRegistryConfig(), metrics);
+                services[i].login(LocalLetPotBackend.email(i), "password");
+                deviceIds[i] = services[i].getDevices().stream().map(LetPotDeviceDto::getDeviceId).toArray(String[]::new);
+            }
+
+            Load load = new Load(services, deviceIds, weights);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(load::run, "load-" + t);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            load.reset();
+            long connectsBefore = metrics.getMqttConnects();
+            long reconnectsBefore = metrics.getMqttReconnects();
+            long gcCountBefore = gcCount();
+            long gcTimeBefore = gcTimeMillis();
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            long start = System.nanoTime();
+
+            if (bounceAt > 0 && bounceAt < seconds) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(bounceAt));
+                System.out.println("Stopping broker for " + bounceMs + " ms");
+                backend.stopBroker();
+                Thread.sleep(bounceMs);
+                backend.startBroker();
+                Thread.sleep(Math.max(0, TimeUnit.SECONDS.toMillis(seconds) - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            } else {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            }
+            load.stop();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            for (Thread worker : workers) {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            }
+
+            long totalOps = 0;
+            System.out.printf("%n%-8s %10s %10s %8s  %s%n", "op", "ops", "ops/s", "errors", "latency");
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                LetPotLatencyHistogram latency = load.latencies[op];
+                if (latency.getCount() == 0 && load.errors[op].sum() == 0) {
+                    continue;
+                }
+                totalOps += latency.getCount();
+                System.out.printf("%-8s %10d %10.0f %8d  %s%n", OPERATIONS[op], latency.getCount(), latency.getCount() / elapsed,
+                        load.errors[op].sum(), latency);
+            }
+            System.out.printf("total    %10d %10.0f%n", totalOps, totalOps / elapsed);
+            System.out.printf("%nAccounts=%d devices=%d threads=%d, %.1f s measured%n", accounts, accounts * devices, threads, elapsed);
+            System.out.printf("MQTT connects=%d reconnects=%d open connections=%d, device commands seen=%d%n",
+                    metrics.getMqttConnects() - connectsBefore, metrics.getMqttReconnects() - reconnectsBefore,
+                    mqttService.getOpenConnectionCount(), fleet.getCommandCount());
+            System.out.printf("Heap peak=%d MB max=%d MB, GC count=%d time=%d ms%n", heapPeakBytes() >> 20,
+                    Runtime.getRuntime().maxMemory() >> 20, gcCount() - gcCountBefore, gcTimeMillis() - gcTimeBefore);
+            System.out.println("Publish: " + metrics.getPublishLatency());
+
+            for (LetPotService service : services) {
+                service.close();
+            }
+            mqttService.close();
+        }
+        System.exit(0);
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.split(":");
+            int op = List.of(OPERATIONS).indexOf(nameAndWeight[0].trim());
+            if (op < 0 || nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry " + part + "; operations are " + List.of(OPERATIONS));
+            }
+            weights[op] = Integer.parseInt(nameAndWeight[1].trim());
+        }
+        return weights;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    // Sum of per-pool peaks, an upper bound on the peak total heap since the last reset.
+    private static long heapPeakBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static class Load {
+        private final LetPotService[] services;
+        private final String[][] deviceIds;
+        private final int[] cumulativeWeights;
+        private final LetPotLatencyHistogram[] latencies = new LetPotLatencyHistogram[OPERATIONS.length];
+        private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+        private volatile boolean running = true;
+
+        Load(LetPotService[] services, String[][] deviceIds, int[] weights) {
+            this.services = services;
+            this.deviceIds = deviceIds;
+            this.cumulativeWeights = new int[weights.length];
+            int sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += weights[i];
+                cumulativeWeights[i] = sum;
+                latencies[i] = new LetPotLatencyHistogram();
+                errors[i] = new LongAdder();
+            }
+            if (sum == 0) {
+                throw new IllegalArgumentException("Operation mix has no weight");
+            }
+        }
+
+        void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running) {
+                int account = random.nextInt(services.length);
+                String deviceId = deviceIds[account][random.nextInt(deviceIds[account].length)];
+                int op = pick(random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]));
+                long start = System.nanoTime();
+                try {
+                    execute(op, services[account], deviceId, random);
+                    latencies[op].record(System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    errors[op].increment();
+                }
+            }
+        }
+
+        private void execute(int op, LetPotService service, String deviceId, ThreadLocalRandom random) {
+            LetPotPumpCommand command = random.nextBoolean() ? LetPotPumpCommand.on(10 + random.nextInt(50)) : LetPotPumpCommand.off();
+            switch (op) {
+                case 0:
+                    service.sendPumpCommandAsync(deviceId, command).join();
+                    break;
+                case 1:
+                    service.sendPumpCommandTrackedAsync(deviceId, command).join();
+                    break;
+                case 2:
+                    service.requestStatusAsync(deviceId).join();
+                    break;
+                default:
+                    service.refreshDevices();
+                    break;
+            }
+        }
+
+        private int pick(int value) {
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (value < cumulativeWeights[i]) {
+                    return i;
+                }
+            }
+            return cumulativeWeights.length - 1;
+        }
+
+        void reset() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i].reset();
+                errors[i].reset();
+            }
+        }
+
+        void stop() {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.letpot.benchmark;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ServerSocketFactory;
+
+/**
+ * An embedded MQTT broker plus a mock LetPot REST API on localhost, so dispatch benchmarks run offline.
+ * Accounts are implicit: logging in as {@code bench-N@letpot.local} yields user id {@code user-N}, which
+ * owns {@code devicesPerAccount} devices. Faults can be injected at runtime: REST errors and latency via
+ * {@link #injectRestFaults}, and a broker outage via {@link #stopBroker} and {@link #startBroker}.
+ * With a {@link SimulatedDeviceFleet}, devices answer commands with status reports.
+ */
+public class LocalLetPotBackend implements AutoCloseable {
+
+    private static final Pattern EMAIL = Pattern.compile("\"email\"\\s*:\\s*\"bench-(\\d+)@letpot\\.local\"");
+    private static final Pattern DEVICES_PATH = Pattern.compile("/v1/user/([^/]+)/devices");
+    // MockWebServer logs every request through java.util.logging; held here so the level is not lost to GC.
+    private static final Logger MOCK_SERVER_LOG = Logger.getLogger(MockWebServer.class.getName());
+
+    static {
+        MOCK_SERVER_LOG.setLevel(Level.WARNING);
+    }
+
+    private final int devicesPerAccount;
+    private final long tokenLifetimeSeconds;
+    private final SimulatedDeviceFleet fleet;
+    private final MockWebServer api = new MockWebServer();
+    private final int brokerPort;
+    private Server broker;
+    private volatile double restFailureRate;
+    private volatile long restDelayMillis;
+
+    public LocalLetPotBackend(int devicesPerAccount) {
+        this(devicesPerAccount, 3600);
+    }
+
+    public LocalLetPotBackend(int devicesPerAccount, long tokenLifetimeSeconds) {
+        this(devicesPerAccount, tokenLifetimeSeconds, null);
+    }
+
+    public LocalLetPotBackend(int devicesPerAccount, long tokenLifetimeSeconds, SimulatedDeviceFleet fleet) {
+        this.devicesPerAccount = devicesPerAccount;
+        this.tokenLifetimeSeconds = tokenLifetimeSeconds;
+        this.fleet = fleet;
+        this.brokerPort = freePort();
+        try {
+            startBroker();
+            api.setDispatcher(new ApiDispatcher());
+            api.setServerSocketFactory(new NoDelayServerSocketFactory());
+            api.start();
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Failed to start local LetPot backend", e);
+        }
+    }
+
+    public static String email(int account) {
+        return "bench-" + account + "@letpot.local";
+    }
+
+    public static String userId(int account) {
+        return "user-" + account;
+    }
+
+    public String brokerUrl() {
+        return "tcp://127.0.0.1:" + brokerPort;
+    }
+
+    public String apiBaseUrl() {
+        return api.url("/").toString();
+    }
+
+    public int getDevicesPerAccount() {
+        return devicesPerAccount;
+    }
+
+    // From now on, the given fraction of REST calls fails with 503, and every call waits delay before responding.
+    public void injectRestFaults(double failureRate, Duration delay) {
+        restFailureRate = failureRate;
+        restDelayMillis = delay.toMillis();
+    }
+
+    public int getRestRequestCount() {
+        return api.getRequestCount();
+    }
+
+    // Drops all client connections and refuses new ones until startBroker().
+    public synchronized void stopBroker() {
+        if (broker != null) {
+            if (fleet != null) {
+                fleet.attach(null);
+            }
+            broker.stopServer();
+            broker = null;
+        }
+    }
+
+    public synchronized void startBroker() throws IOException {
+        if (broker == null) {
+            Server server = new Server();
+            server.startServer(new MemoryConfig(brokerProperties(brokerPort)),
+                    fleet == null ? Collections.emptyList() : Collections.singletonList(fleet));
+            if (fleet != null) {
+                fleet.attach(server);
+            }
+            broker = server;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopBroker();
+        try {
+            api.shutdown();
+        } catch (IOException e) {
+            // Shutting down anyway.
+        }
+    }
+
+    private static Properties brokerProperties(int port) {
+        Properties properties = new Properties();
+        properties.setProperty("host", "127.0.0.1");
+        properties.setProperty("port", Integer.toString(port));
+        properties.setProperty("websocket_port", "disabled");
+        properties.setProperty("allow_anonymous", "true");
+        properties.setProperty("persistence_enabled", "false");
+        properties.setProperty("telemetry_enabled", "false");
+        return properties;
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // MockWebServer writes headers and body separately; with Nagle on, the body waits for the client's
+    // delayed ACK and every call takes ~40ms. Real servers flush once, so benchmark without the stall.
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = new Socket();
+                    implAccept(socket);
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class ApiDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            MockResponse response = respond(request);
+            if (restDelayMillis > 0) {
+                response.setHeadersDelay(restDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            return response;
+        }
+
+        private MockResponse respond(RecordedRequest request) {
+            if (restFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < restFailureRate) {
+                return new MockResponse().setResponseCode(503);
+            }
+            String path = request.getPath();
+            if (path.startsWith("/v1/auth/login")) {
+                Matcher email = EMAIL.matcher(request.getBody().readUtf8());
+                if (!email.find()) {
+                    return json(401, "{\"ok\":false}".getBytes(StandardCharsets.UTF_8));
+                }
+                return json(200, LetPotFixtures.authenticationJson(userId(Integer.parseInt(email.group(1))), tokenLifetimeSeconds));
+            }
+            if (path.startsWith("/v1/auth/refresh")) {
+                String token = request.getRequestUrl().queryParameter("refresh_token");
+                if (token == null || !token.startsWith("refresh-")) {
+                    return json(401, "{\"ok\":false}".getBytes(StandardCharsets.UTF_8));
+                }
+                return json(200, LetPotFixtures.authenticationJson(token.substring("refresh-".length()), tokenLifetimeSeconds));
+            }
+            Matcher devices = DEVICES_PATH.matcher(path);
+            if (devices.matches()) {
+                return json(200, LetPotFixtures.deviceListJson(devices.group(1), devicesPerAccount));
+            }
+            return new MockResponse().setResponseCode(404);
+        }
+
+        private MockResponse json(int code, byte[] body) {
+            return new MockResponse()
+                    .setResponseCode(code)
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(new Buffer().write(body));
+        }
+    }
+}
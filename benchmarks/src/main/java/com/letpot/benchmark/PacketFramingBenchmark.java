@@ -0,0 +1,120 @@
+package com.letpot.benchmark;
+
+import com.letpot.util.LetPotPacketFramer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Framing a command into hex MQTT packets: the original List<Integer>/String.format implementation
+// against LetPotPacketFramer writing into a reused buffer.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketFramingBenchmark {
+
+    // 15 is a pump command; the others span two and nine packets.
+    @Param({"15", "200", "1000"})
+    private int messageLength;
+
+    private byte[] message;
+    private byte[] packetBuffer;
+    private int messageId;
+
+    @Setup
+    public void setUp() {
+        message = new byte[messageLength];
+        ThreadLocalRandom.current().nextBytes(message);
+        packetBuffer = new byte[LetPotPacketFramer.MAX_ENCODED_PACKET_LENGTH];
+    }
+
+    @Benchmark
+    public List<String> legacy() {
+        List<String> packets = legacyGenerateMessagePackets(message, messageId);
+        messageId = (messageId + packets.size()) & 0xFF;
+        return packets;
+    }
+
+    @Benchmark
+    public void framer(Blackhole blackhole) {
+        int packets = LetPotPacketFramer.packetCount(messageLength);
+        for (int i = 0; i < packets; i++) {
+            blackhole.consume(LetPotPacketFramer.encodePacket(message, messageLength, i, messageId, packetBuffer, 0));
+            messageId = (messageId + 1) & 0xFF;
+        }
+        blackhole.consume(packetBuffer);
+    }
+
+    // Framer output as strings, for callers that still need one String per packet.
+    @Benchmark
+    public List<String> framerToStrings() {
+        int packets = LetPotPacketFramer.packetCount(messageLength);
+        List<String> result = new ArrayList<>(packets);
+        for (int i = 0; i < packets; i++) {
+            int length = LetPotPacketFramer.encodePacket(message, messageLength, i, messageId, packetBuffer, 0);
+            result.add(new String(packetBuffer, 0, length, StandardCharsets.US_ASCII));
+            messageId = (messageId + 1) & 0xFF;
+        }
+        return result;
+    }
+
+    // The implementation LetPotMqttService shipped with, kept verbatim as the baseline.
+    static List<String> legacyGenerateMessagePackets(byte[] message, int messageId) {
+        int maintype = 1;
+        int subtype = 19;
+        int length = message.length;
+        int maxPacketSize = LetPotPacketFramer.MTU - 6;
+        int numPackets = (length + maxPacketSize - 1) / maxPacketSize;
+
+        List<String> packets = new ArrayList<>();
+        for (int n = 0; n < numPackets; n++) {
+            int start = n * maxPacketSize;
+            int end = Math.min(start + maxPacketSize, length);
+            byte[] payload = new byte[end - start];
+            System.arraycopy(message, start, payload, 0, payload.length);
+
+            List<Integer> packet = new ArrayList<>();
+            if (n < numPackets - 1) {
+                packet.add((subtype << 2) | maintype);
+                packet.add(16);
+                packet.add(messageId);
+                packet.add(payload.length + 4);
+                packet.add(length % 256);
+                packet.add(length / 256);
+            } else {
+                packet.add((subtype << 2) | maintype);
+                packet.add(0);
+                packet.add(messageId);
+                packet.add(payload.length);
+            }
+            for (byte b : payload) {
+                packet.add(b & 0xFF);
+            }
+
+            StringBuilder hexString = new StringBuilder();
+            for (Integer p : packet) {
+                hexString.append(String.format("%02x", p));
+            }
+            packets.add(hexString.toString());
+            messageId++;
+        }
+        return packets;
+    }
+}
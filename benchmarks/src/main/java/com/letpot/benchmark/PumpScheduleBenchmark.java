@@ -0,0 +1,98 @@
+package com.letpot.benchmark;
+
+import com.letpot.model.LetPotBulkCommandReport;
+import com.letpot.model.LetPotCommandResult;
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.model.LetPotPumpSchedule;
+import com.letpot.model.LetPotScheduleConfig;
+import com.letpot.service.LetPotPumpScheduler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Adding and replacing schedules while the scheduler already holds a large, firing set of them.
+// For dispatch jitter under load, run PumpScheduleJitterRun.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PumpScheduleBenchmark {
+
+    @Param({"100000"})
+    private int preloadedSchedules;
+
+    private LetPotPumpScheduler scheduler;
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scheduler = new LetPotPumpScheduler(PumpScheduleBenchmark::acceptAll, new LetPotScheduleConfig());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < preloadedSchedules; i++) {
+            scheduler.add(randomSchedule("preloaded-" + i, now));
+        }
+        scheduler.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    @Benchmark
+    public void addSchedule() {
+        scheduler.add(randomSchedule("added-" + nextId.incrementAndGet(), System.currentTimeMillis()));
+    }
+
+    // Same id, so each call cancels the previous schedule's pending actuations.
+    @Benchmark
+    public void replaceSchedule() {
+        int id = ThreadLocalRandom.current().nextInt(preloadedSchedules);
+        scheduler.add(randomSchedule("preloaded-" + id, System.currentTimeMillis()));
+    }
+
+    // Starts spread over the next 10 minutes, repeating hourly.
+    static LetPotPumpSchedule randomSchedule(String id, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return LetPotPumpSchedule.builder()
+                .id(id)
+                .deviceId("device-" + random.nextInt(1_000_000))
+                .startEpochMillis(now + random.nextLong(TimeUnit.MINUTES.toMillis(10)))
+                .durationSeconds(30)
+                .repeatEverySeconds(3600)
+                .build();
+    }
+
+    // Stands in for LetPotService.sendBulkCommandAsync: every device succeeds immediately.
+    static CompletableFuture<LetPotBulkCommandReport> acceptAll(Collection<String> deviceIds,
+                                                                 LetPotPumpCommand command) {
+        Map<String, LetPotCommandResult> results = new LinkedHashMap<>();
+        for (String deviceId : deviceIds) {
+            results.put(deviceId, new LetPotCommandResult(deviceId, LetPotCommandStatus.SENT, null));
+        }
+        return CompletableFuture.completedFuture(new LetPotBulkCommandReport(command, results, 0));
+    }
+}
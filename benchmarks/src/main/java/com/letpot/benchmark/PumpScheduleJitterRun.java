@@ -0,0 +1,71 @@
+package com.letpot.benchmark;
+
+import com.letpot.model.LetPotPumpSchedule;
+import com.letpot.model.LetPotScheduleConfig;
+import com.letpot.service.LetPotPumpScheduler;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules N one-off waterings (default 100,000) spread over a window, lets them all fire and off again, and
+ * reports how late actuations left the timer wheel plus dispatch throughput and save/load cost. Not a JMH
+ * benchmark, since jitter is a distribution over one long run:
+ * {@code java -cp target/benchmarks.jar com.letpot.benchmark.PumpScheduleJitterRun [schedules] [windowSeconds]}
+ */
+public class PumpScheduleJitterRun {
+
+    public static void main(String[] args) throws Exception {
+        int schedules = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int windowSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int durationSeconds = 2;
+        Path file = Files.createTempFile("letpot-schedules", ".json");
+
+        LetPotScheduleConfig config = new LetPotScheduleConfig();
+        config.setPersistenceFile(file);
+        LetPotPumpScheduler scheduler = new LetPotPumpScheduler(PumpScheduleBenchmark::acceptAll, config);
+        long start = System.currentTimeMillis() + 2000;
+        long addStart = System.nanoTime();
+        for (int i = 0; i < schedules; i++) {
+            scheduler.add(LetPotPumpSchedule.builder()
+                    .id("schedule-" + i)
+                    .deviceId("device-" + i)
+                    .startEpochMillis(start + (long) i * windowSeconds * 1000 / schedules)
+                    .durationSeconds(durationSeconds)
+                    .build());
+        }
+        System.out.printf("Added %d schedules in %d ms%n", schedules, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - addStart));
+
+        scheduler.start();
+        long expected = 2L * schedules;
+        long deadline = System.currentTimeMillis() + 2000 + (windowSeconds + durationSeconds + 10) * 1000L;
+        while (scheduler.getDispatchedActuationCount() + scheduler.getFailedActuationCount() < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        long fired = scheduler.getDispatchedActuationCount();
+        System.out.printf("Dispatched %d of %d actuations (%d failed), %.0f actuations/s during the window%n",
+                fired, expected, scheduler.getFailedActuationCount(), fired / (double) (windowSeconds + durationSeconds));
+        System.out.println("Jitter: " + scheduler.getJitter());
+        scheduler.close();
+
+        // Save and reload cost with the full set of pending schedules.
+        LetPotScheduleConfig reloadConfig = new LetPotScheduleConfig();
+        reloadConfig.setPersistenceFile(file);
+        LetPotPumpScheduler writer = new LetPotPumpScheduler(PumpScheduleBenchmark::acceptAll, reloadConfig);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < schedules; i++) {
+            writer.add(PumpScheduleBenchmark.randomSchedule("schedule-" + i, now));
+        }
+        long saveStart = System.nanoTime();
+        writer.close();
+        long saveMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - saveStart);
+        long loadStart = System.nanoTime();
+        LetPotPumpScheduler reader = new LetPotPumpScheduler(PumpScheduleBenchmark::acceptAll, reloadConfig);
+        System.out.printf("Saved %d schedules (%d KB) in %d ms, reloaded %d in %d ms%n", schedules, Files.size(file) / 1024,
+                saveMillis, reader.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
+        reader.close();
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,119 @@
+package com.letpot.benchmark;
+
+import com.letpot.client.LetPotApiClient;
+import com.letpot.exception.LetPotRejectedException;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotHttpConfig;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.model.LetPotResilienceConfig;
+import com.letpot.service.LetPotMqttService;
+import com.letpot.service.LetPotService;
+import com.letpot.util.LetPotHttpTransport;
+import com.letpot.util.LetPotResilience;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the resilience layer against the fault-injecting local backend: transient REST errors, a
+ * full REST outage and a broker outage, each followed by recovery. For every phase it prints how many
+ * calls succeeded, how many were rejected locally, how many reached the server, and the mean call
+ * time, with the layer on and off:
+ * {@code java -cp target/benchmarks.jar com.letpot.benchmark.ResilienceRun [phaseSeconds]}
+ */
+public class ResilienceRun {
+
+    public static void main(String[] args) throws Exception {
+        int phaseSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        for (boolean resilient : new boolean[] {false, true}) {
+            System.out.println(resilient ? "== With resilience" : "== Without resilience");
+            run(resilient, phaseSeconds);
+        }
+        System.exit(0);
+    }
+
+    private static void run(boolean resilient, int phaseSeconds) throws Exception {
+        LetPotResilienceConfig resilience = new LetPotResilienceConfig();
+        resilience.setPermitsPerSecond(0);
+        resilience.setInitialBackoff(Duration.ofMillis(20));
+        resilience.setMaxBackoff(Duration.ofMillis(200));
+        resilience.setOpenDuration(Duration.ofSeconds(1));
+
+        try (LocalLetPotBackend backend = new LocalLetPotBackend(4)) {
+            LetPotHttpConfig httpConfig = new LetPotHttpConfig();
+            httpConfig.setBaseUrl(backend.apiBaseUrl());
+            httpConfig.setResilience(resilient ? resilience : null);
+            LetPotHttpTransport transport = new LetPotHttpTransport(httpConfig);
+            LetPotMqttConfig mqttConfig = new LetPotMqttConfig();
+            mqttConfig.setBrokerUrl(backend.brokerUrl());
+            mqttConfig.setResilience(resilient ? resilience : null);
+            LetPotMqttService mqttService = new LetPotMqttService(mqttConfig);
+            LetPotApiClient apiClient = transport.createApiClient(LetPotMetrics.noop());
+            LetPotService service = new LetPotService(apiClient, mqttService);
+            service.login(LocalLetPotBackend.email(0), "password");
+            String deviceId = service.getDevices().get(0).getDeviceId();
+
+            backend.injectRestFaults(0.3, Duration.ZERO);
+            phase("REST, 30% errors", backend, phaseSeconds, () -> service.refreshDevices());
+
+            backend.injectRestFaults(1.0, Duration.ofMillis(100));
+            phase("REST outage, 100 ms responses", backend, phaseSeconds, () -> service.refreshDevices());
+
+            backend.injectRestFaults(0, Duration.ZERO);
+            phase("REST recovered", backend, phaseSeconds, () -> service.refreshDevices());
+
+            backend.stopBroker();
+            phase("Broker outage", backend, phaseSeconds, () -> service.turnOnDevice(deviceId, 30));
+
+            backend.startBroker();
+            phase("Broker recovered", backend, phaseSeconds, () -> service.sendPumpCommandAsync(deviceId, LetPotPumpCommand.on(30)).join());
+
+            report("REST", transport.getResilience());
+            report("MQTT", mqttService.getResilience());
+            service.close();
+            mqttService.close();
+            transport.close();
+        }
+    }
+
+    private static void phase(String name, LocalLetPotBackend backend, int seconds, Runnable call) {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        int requestsBefore = backend.getRestRequestCount();
+        long calls = 0;
+        long succeeded = 0;
+        long rejected = 0;
+        long totalNanos = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            try {
+                call.run();
+                succeeded++;
+            } catch (RuntimeException e) {
+                if (isRejection(e)) {
+                    rejected++;
+                }
+            }
+            totalNanos += System.nanoTime() - start;
+            calls++;
+        }
+        System.out.printf("%-32s calls=%-6d ok=%-6d rejected=%-6d restRequests=%-6d mean=%.2f ms%n", name, calls, succeeded,
+                rejected, backend.getRestRequestCount() - requestsBefore, totalNanos / 1e6 / Math.max(1, calls));
+    }
+
+    private static boolean isRejection(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof LetPotRejectedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void report(String name, LetPotResilience resilience) {
+        if (resilience != null) {
+            System.out.printf("%s: circuit=%s retries=%d circuitRejected=%d rateLimited=%d%n", name, resilience.getCircuitState(),
+                    resilience.getRetryCount(), resilience.getCircuitRejectedCount(), resilience.getRateLimitedCount());
+        }
+    }
+}
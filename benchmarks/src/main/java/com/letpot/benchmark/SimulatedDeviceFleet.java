@@ -0,0 +1,160 @@
+package com.letpot.benchmark;
+
+import com.letpot.model.LetPotDeviceCommand;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.util.LetPotCommandCodec;
+import com.letpot.util.LetPotPacketFramer;
+import com.letpot.util.LetPotPacketReassembler;
+import com.letpot.util.LetPotStatusDecoder;
+import io.moquette.broker.Server;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-side stand-in for ISE devices: every command published to {@code <device>/cmd} is reassembled,
+ * applied to that device's pump state, and answered with a status report on {@code <device>/data}
+ * carrying the message id of the command's last packet, as real devices do. Devices exist as soon as
+ * they receive a command. Moquette runs interceptors on one thread, so per-device state needs no locking.
+ */
+public class SimulatedDeviceFleet extends AbstractInterceptHandler {
+
+    private static final String COMMAND_SUFFIX = "/cmd";
+    private static final String STATUS_SUFFIX = "/data";
+    private static final int STATUS_LENGTH = 10;
+
+    private final long responseDelayMillis;
+    private final Map<String, Device> devices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService delayer;
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private volatile Server broker;
+
+    // responseDelayMillis is the device's processing time before it reports its status.
+    public SimulatedDeviceFleet(long responseDelayMillis) {
+        this.responseDelayMillis = responseDelayMillis;
+        this.delayer = responseDelayMillis > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "simulated-devices");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    void attach(Server broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public String getID() {
+        return "simulated-device-fleet";
+    }
+
+    @Override
+    public void onPublish(InterceptPublishMessage message) {
+        String topic = message.getTopicName();
+        ByteBuf payload = message.getPayload();
+        byte[] packet;
+        try {
+            if (!topic.endsWith(COMMAND_SUFFIX)) {
+                return;
+            }
+            packet = new byte[payload.readableBytes()];
+            payload.getBytes(payload.readerIndex(), packet);
+        } finally {
+            // Every handler gets its own retained duplicate of the payload and must release it.
+            payload.release();
+        }
+        String deviceId = topic.substring(0, topic.length() - COMMAND_SUFFIX.length());
+        Device device = devices.computeIfAbsent(deviceId, id -> new Device());
+        if (!device.reassembler.accept(packet, 0, packet.length)) {
+            return;
+        }
+        commands.increment();
+        LetPotDeviceCommand command;
+        try {
+            command = LetPotCommandCodec.decode(device.reassembler.message(), 0, device.reassembler.length());
+        } catch (IllegalArgumentException e) {
+            // Not an ISE command, e.g. a benchmark's raw payload; a real device would ignore it too.
+            malformed.increment();
+            return;
+        }
+        if (command instanceof LetPotPumpCommand) {
+            device.apply((LetPotPumpCommand) command);
+        }
+        byte[] status = device.status(device.reassembler.messageId());
+        if (delayer == null) {
+            publish(deviceId, status);
+        } else {
+            delayer.schedule(() -> publish(deviceId, status), responseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onSessionLoopError(Throwable error) {
+        // Broker-internal; the load test sees its effect as failed or slow commands.
+    }
+
+    public long getCommandCount() {
+        return commands.sum();
+    }
+
+    public long getMalformedCount() {
+        return malformed.sum();
+    }
+
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    private void publish(String deviceId, byte[] statusPacket) {
+        Server server = broker;
+        if (server == null) {
+            return;
+        }
+        server.internalPublish(MqttMessageBuilders.publish()
+                .topicName(deviceId + STATUS_SUFFIX)
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .payload(Unpooled.wrappedBuffer(statusPacket))
+                .build(), getID());
+    }
+
+    private static class Device {
+        private final LetPotPacketReassembler reassembler = new LetPotPacketReassembler();
+        private LetPotPumpCommand pump = LetPotPumpCommand.off();
+
+        void apply(LetPotPumpCommand command) {
+            pump = command;
+        }
+
+        // The status report as one framed hex packet, in the layout LetPotStatusDecoder reads.
+        byte[] status(int messageId) {
+            byte[] report = new byte[STATUS_LENGTH];
+            report[0] = (byte) LetPotStatusDecoder.STATUS_PREFIX;
+            report[1] = (byte) LetPotStatusDecoder.STATUS_TYPE;
+            report[2] = (byte) (pump.isOn() ? 1 : 0);
+            report[3] = (byte) (pump.isCycleOn() ? 1 : 0);
+            writeShort(report, 4, pump.getDurationSeconds());
+            writeShort(report, 6, pump.getCycleOnSeconds());
+            writeShort(report, 8, pump.getCycleOffSeconds());
+            byte[] packet = new byte[LetPotPacketFramer.encodedPacketLength(STATUS_LENGTH, 0)];
+            LetPotPacketFramer.encodePacket(report, STATUS_LENGTH, 0, messageId, packet, 0);
+            return packet;
+        }
+
+        private static void writeShort(byte[] dst, int offset, int value) {
+            dst[offset] = (byte) (value >>> 8);
+            dst[offset + 1] = (byte) value;
+        }
+    }
+}
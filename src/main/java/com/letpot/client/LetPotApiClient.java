@@ -2,6 +2,7 @@ package com.letpot.client;
 
 import com.letpot.dto.LetPotAuthenticationResponseDto;
 import com.letpot.dto.LetPotDeviceListResponseDto;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.*;
 
@@ -9,12 +10,20 @@ import java.util.Map;
 
 public interface LetPotApiClient {
     
+    @Idempotent
     @POST("v1/auth/login")
     Call<LetPotAuthenticationResponseDto> login(@Body Map<String, String> loginForm);
     
+    // Not idempotent: a refresh may rotate the refresh token it was sent with. The user id is not sent; it tags
+    // the request so per-account rate limits never key on the token.
     @POST("v1/auth/refresh")
-    Call<LetPotAuthenticationResponseDto> refreshToken(@Query("refresh_token") String refreshToken);
+    Call<LetPotAuthenticationResponseDto> refreshToken(@Query("refresh_token") String refreshToken, @Tag String userId);
     
     @GET("v1/user/{userId}/devices")
     Call<LetPotDeviceListResponseDto> getDevices(@Header("Authorization") String token, @Path("userId") String userId);
+    
+    // Same endpoint as getDevices, left unparsed for LetPotDeviceListDecoder.
+    @Streaming
+    @GET("v1/user/{userId}/devices")
+    Call<ResponseBody> getDevicesStream(@Header("Authorization") String token, @Path("userId") String userId);
 } 
\ No newline at end of file
@@ -0,0 +1,9 @@
+package com.letpot.exception;
+
+// A call refused locally, without reaching the LetPot API or broker: rate limited or circuit open.
+public class LetPotRejectedException extends LetPotConnectionException {
+
+    public LetPotRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,192 @@
+package com.letpot.metrics;
+
+import com.letpot.util.LetPotLatencyHistogram;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// In-process registry built on LongAdder counters and lock-free histograms; cheap enough to leave on under load.
+public class InMemoryLetPotMetrics implements LetPotMetrics {
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final LetPotLatencyHistogram tokenRefreshLatency = new LetPotLatencyHistogram();
+    private final LongAdder tokenRefreshFailures = new LongAdder();
+    private final LetPotLatencyHistogram mqttConnectLatency = new LetPotLatencyHistogram();
+    private final LongAdder mqttConnects = new LongAdder();
+    private final LongAdder mqttReconnects = new LongAdder();
+    private final LongAdder mqttConnectFailures = new LongAdder();
+    private final LetPotLatencyHistogram publishLatency = new LetPotLatencyHistogram();
+    private final LongAdder publishedPackets = new LongAdder();
+    private final LongAdder publishedBytes = new LongAdder();
+    private final LetPotLatencyHistogram multiPacketPublishLatency = new LetPotLatencyHistogram();
+    private final LongAccumulator maxPacketsPerCommand = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxBytesPerCommand = new LongAccumulator(Math::max, 0);
+    private final LongAdder publishFailures = new LongAdder();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordRestCall(String endpoint, int statusCode, long durationNanos) {
+        endpoints.computeIfAbsent(endpoint, e -> new Endpoint()).record(statusCode, durationNanos);
+    }
+
+    @Override
+    public void recordTokenRefresh(boolean success, long durationNanos) {
+        if (success) {
+            tokenRefreshLatency.record(durationNanos);
+        } else {
+            tokenRefreshFailures.increment();
+        }
+    }
+
+    @Override
+    public void recordMqttConnect(boolean reconnect, boolean success, long durationNanos) {
+        if (!success) {
+            mqttConnectFailures.increment();
+            return;
+        }
+        mqttConnectLatency.record(durationNanos);
+        if (reconnect) {
+            mqttReconnects.increment();
+        } else {
+            mqttConnects.increment();
+        }
+    }
+
+    @Override
+    public void recordPublish(long durationNanos, int packets, int wireBytes) {
+        publishLatency.record(durationNanos);
+        publishedPackets.add(packets);
+        publishedBytes.add(wireBytes);
+        maxPacketsPerCommand.accumulate(packets);
+        maxBytesPerCommand.accumulate(wireBytes);
+        if (packets > 1) {
+            multiPacketPublishLatency.record(durationNanos);
+        }
+    }
+
+    @Override
+    public void recordPublishFailure() {
+        publishFailures.increment();
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public Map<String, Endpoint> getEndpoints() {
+        return Collections.unmodifiableMap(endpoints);
+    }
+
+    public LetPotLatencyHistogram getTokenRefreshLatency() {
+        return tokenRefreshLatency;
+    }
+
+    public long getTokenRefreshFailures() {
+        return tokenRefreshFailures.sum();
+    }
+
+    public LetPotLatencyHistogram getMqttConnectLatency() {
+        return mqttConnectLatency;
+    }
+
+    public long getMqttConnects() {
+        return mqttConnects.sum();
+    }
+
+    public long getMqttReconnects() {
+        return mqttReconnects.sum();
+    }
+
+    public long getMqttConnectFailures() {
+        return mqttConnectFailures.sum();
+    }
+
+    // Publish latency covers submit of the first packet until the broker acked the last one.
+    public LetPotLatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
+
+    public long getPublishedCommands() {
+        return publishLatency.getCount();
+    }
+
+    public long getPublishedPackets() {
+        return publishedPackets.sum();
+    }
+
+    public long getPublishedBytes() {
+        return publishedBytes.sum();
+    }
+
+    // Publish latency of commands that needed more than one packet.
+    public LetPotLatencyHistogram getMultiPacketPublishLatency() {
+        return multiPacketPublishLatency;
+    }
+
+    public long getMaxPacketsPerCommand() {
+        return maxPacketsPerCommand.get();
+    }
+
+    public long getMaxBytesPerCommand() {
+        return maxBytesPerCommand.get();
+    }
+
+    public long getPublishFailures() {
+        return publishFailures.sum();
+    }
+
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, supplier) -> values.put(name, supplier.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        new TreeMap<>(endpoints).forEach((name, endpoint) ->
+                report.append("rest.").append(name).append(": ").append(endpoint).append('\n'));
+        report.append("token.refresh: ").append(tokenRefreshLatency).append(" failures=").append(getTokenRefreshFailures()).append('\n');
+        report.append("mqtt.connect: ").append(mqttConnectLatency).append(" connects=").append(getMqttConnects())
+                .append(" reconnects=").append(getMqttReconnects()).append(" failures=").append(getMqttConnectFailures()).append('\n');
+        report.append("mqtt.publish: ").append(publishLatency).append(" packets=").append(getPublishedPackets())
+                .append(" bytes=").append(getPublishedBytes()).append(" failures=").append(getPublishFailures())
+                .append(" maxPackets=").append(getMaxPacketsPerCommand()).append(" maxBytes=").append(getMaxBytesPerCommand()).append('\n');
+        if (multiPacketPublishLatency.getCount() > 0) {
+            report.append("mqtt.publish.multi_packet: ").append(multiPacketPublishLatency).append('\n');
+        }
+        getGauges().forEach((name, value) -> report.append(name).append(": ").append(value).append('\n'));
+        return report.toString();
+    }
+
+    public static class Endpoint {
+        private final LetPotLatencyHistogram latency = new LetPotLatencyHistogram();
+        private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+        void record(int statusCode, long durationNanos) {
+            latency.record(durationNanos);
+            statusCounts.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+        }
+
+        public LetPotLatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public Map<Integer, Long> getStatusCounts() {
+            Map<Integer, Long> counts = new TreeMap<>();
+            statusCounts.forEach((code, count) -> counts.put(code, count.sum()));
+            return counts;
+        }
+
+        @Override
+        public String toString() {
+            return latency + " status=" + getStatusCounts();
+        }
+    }
+}
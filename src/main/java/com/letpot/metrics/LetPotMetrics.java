@@ -0,0 +1,29 @@
+package com.letpot.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Instrumentation hooks for the REST and MQTT hot paths. Implementations are called inline on those paths,
+ * so they must be thread-safe, non-blocking and allocation-light. Use {@link #noop()} to disable metrics.
+ */
+public interface LetPotMetrics {
+
+    static LetPotMetrics noop() {
+        return NoOpLetPotMetrics.INSTANCE;
+    }
+
+    // endpoint is the LetPotApiClient method name; statusCode is -1 when the call failed without a response.
+    void recordRestCall(String endpoint, int statusCode, long durationNanos);
+
+    void recordTokenRefresh(boolean success, long durationNanos);
+
+    void recordMqttConnect(boolean reconnect, boolean success, long durationNanos);
+
+    // One call per command once the broker acked its last packet.
+    void recordPublish(long durationNanos, int packets, int wireBytes);
+
+    void recordPublishFailure();
+
+    // Sampled only when read, so registering a gauge costs nothing on the hot path.
+    void registerGauge(String name, LongSupplier value);
+}
@@ -0,0 +1,34 @@
+package com.letpot.metrics;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Invocation;
+
+import java.io.IOException;
+
+// Times every REST call and tags it with the LetPotApiClient method that issued it.
+public class LetPotMetricsInterceptor implements Interceptor {
+
+    private final LetPotMetrics metrics;
+
+    public LetPotMetricsInterceptor(LetPotMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Invocation invocation = request.tag(Invocation.class);
+        String endpoint = invocation != null ? invocation.method().getName() : request.url().encodedPath();
+        long start = System.nanoTime();
+        try {
+            Response response = chain.proceed(request);
+            metrics.recordRestCall(endpoint, response.code(), System.nanoTime() - start);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            metrics.recordRestCall(endpoint, -1, System.nanoTime() - start);
+            throw e;
+        }
+    }
+}
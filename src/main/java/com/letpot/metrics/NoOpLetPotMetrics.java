@@ -0,0 +1,35 @@
+package com.letpot.metrics;
+
+import java.util.function.LongSupplier;
+
+final class NoOpLetPotMetrics implements LetPotMetrics {
+
+    static final NoOpLetPotMetrics INSTANCE = new NoOpLetPotMetrics();
+
+    private NoOpLetPotMetrics() {
+    }
+
+    @Override
+    public void recordRestCall(String endpoint, int statusCode, long durationNanos) {
+    }
+
+    @Override
+    public void recordTokenRefresh(boolean success, long durationNanos) {
+    }
+
+    @Override
+    public void recordMqttConnect(boolean reconnect, boolean success, long durationNanos) {
+    }
+
+    @Override
+    public void recordPublish(long durationNanos, int packets, int wireBytes) {
+    }
+
+    @Override
+    public void recordPublishFailure() {
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier value) {
+    }
+}
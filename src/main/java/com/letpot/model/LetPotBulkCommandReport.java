@@ -0,0 +1,21 @@
+package com.letpot.model;
+
+import lombok.Value;
+
+import java.util.Map;
+
+@Value
+public class LetPotBulkCommandReport {
+    LetPotPumpCommand command;
+    // Keyed by device id, in dispatch order.
+    Map<String, LetPotCommandResult> results;
+    long elapsedMillis;
+
+    public long count(LetPotCommandStatus status) {
+        return results.values().stream().filter(r -> r.getStatus() == status).count();
+    }
+
+    public boolean isAllSucceeded() {
+        return count(LetPotCommandStatus.FAILED) == 0;
+    }
+}
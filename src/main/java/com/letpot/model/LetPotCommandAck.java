@@ -0,0 +1,25 @@
+package com.letpot.model;
+
+import lombok.Value;
+
+@Value
+public class LetPotCommandAck {
+    String deviceId;
+    String commandType;
+    // Message id of the command's last packet, as matched against the device's status frame.
+    int messageId;
+    LetPotCommandStatus status;
+    // Submit until the broker acked the last packet.
+    long brokerLatencyNanos;
+    // Broker ack until the device reported its status; 0 for coalesced commands.
+    long deviceLatencyNanos;
+    // The status report that acknowledged the command; null for coalesced commands.
+    LetPotDeviceStatus deviceStatus;
+    // MQTT packets the command was split into, and their hex-encoded size; 0 for coalesced commands.
+    int packets;
+    int wireBytes;
+
+    public long getTotalLatencyNanos() {
+        return brokerLatencyNanos + deviceLatencyNanos;
+    }
+}
@@ -0,0 +1,10 @@
+package com.letpot.model;
+
+import lombok.Value;
+
+@Value
+public class LetPotCommandResult {
+    String deviceId;
+    LetPotCommandStatus status;
+    Throwable error;
+}
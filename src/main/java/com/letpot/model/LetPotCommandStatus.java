@@ -0,0 +1,9 @@
+package com.letpot.model;
+
+public enum LetPotCommandStatus {
+    // Every packet of the command was acked by the broker.
+    SENT,
+    // A later command for the same device replaced this one before it went out.
+    COALESCED,
+    FAILED
+}
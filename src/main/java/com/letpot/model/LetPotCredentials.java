@@ -1,13 +1,16 @@
 package com.letpot.model;
 
-import lombok.Data;
+import lombok.Builder;
+import lombok.Value;
 
-@Data
+// Immutable so the current credentials can be published as a single snapshot and read without locking.
+@Value
+@Builder(toBuilder = true)
 public class LetPotCredentials {
-    private String letpotUserId;
-    private String email;
-    private String accessToken;
-    private long accessTokenExpires;
-    private String refreshToken;
-    private long refreshTokenExpires;
-} 
\ No newline at end of file
+    String letpotUserId;
+    String email;
+    String accessToken;
+    long accessTokenExpires;
+    String refreshToken;
+    long refreshTokenExpires;
+}
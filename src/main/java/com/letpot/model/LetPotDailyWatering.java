@@ -0,0 +1,19 @@
+package com.letpot.model;
+
+import lombok.Value;
+
+import java.time.LocalDate;
+
+@Value
+public class LetPotDailyWatering {
+    String deviceId;
+    LocalDate date;
+    // Time the pump was pumping, with cycle mode counted at its duty cycle.
+    long wateringSeconds;
+    // Times the device reported the pump switching on that day.
+    int pumpStarts;
+
+    public double getWateringMinutes() {
+        return wateringSeconds / 60.0;
+    }
+}
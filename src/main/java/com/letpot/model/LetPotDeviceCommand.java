@@ -0,0 +1,11 @@
+package com.letpot.model;
+
+// A command for ISE devices. Implementations are immutable and encoded by LetPotCommandCodec.
+public interface LetPotDeviceCommand {
+
+    // Label for latency stats and logs, e.g. "pump_on".
+    String getCommandType();
+
+    // A still-queued command for the device with the same key is replaced by a newer one; null never coalesces.
+    String getCoalesceKey();
+}
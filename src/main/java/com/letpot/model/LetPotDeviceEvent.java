@@ -0,0 +1,51 @@
+package com.letpot.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+// One entry of a device's history: a status report from the device, or the outcome of a command sent to it.
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class LetPotDeviceEvent {
+
+    public enum Type {
+        STATUS,
+        COMMAND
+    }
+
+    String deviceId;
+    long timestampMillis;
+    Type type;
+    // STATUS only: the reported pump state, as in LetPotDeviceStatus.
+    int pumpMode;
+    boolean pumpCycleOn;
+    int pumpDurationSeconds;
+    int pumpCycleOnSeconds;
+    int pumpCycleOffSeconds;
+    // COMMAND only: the command type, its outcome and the time from submit until it.
+    String commandType;
+    LetPotCommandStatus commandStatus;
+    long latencyMillis;
+
+    public static LetPotDeviceEvent status(LetPotDeviceStatus status) {
+        return status(status.getDeviceId(), status.getReceivedAtMillis(), status.getPumpMode(), status.isPumpCycleOn(),
+                status.getPumpDurationSeconds(), status.getPumpCycleOnSeconds(), status.getPumpCycleOffSeconds());
+    }
+
+    public static LetPotDeviceEvent status(String deviceId, long timestampMillis, int pumpMode, boolean pumpCycleOn,
+                                           int pumpDurationSeconds, int pumpCycleOnSeconds, int pumpCycleOffSeconds) {
+        return new LetPotDeviceEvent(deviceId, timestampMillis, Type.STATUS, pumpMode, pumpCycleOn, pumpDurationSeconds,
+                pumpCycleOnSeconds, pumpCycleOffSeconds, null, null, 0);
+    }
+
+    public static LetPotDeviceEvent command(String deviceId, long timestampMillis, String commandType,
+                                            LetPotCommandStatus commandStatus, long latencyMillis) {
+        return new LetPotDeviceEvent(deviceId, timestampMillis, Type.COMMAND, 0, false, 0, 0, 0,
+                commandType, commandStatus, latencyMillis);
+    }
+
+    public boolean isPumpOn() {
+        return type == Type.STATUS && pumpMode == 1;
+    }
+}
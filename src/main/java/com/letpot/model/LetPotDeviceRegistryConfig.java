@@ -0,0 +1,15 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+public class LetPotDeviceRegistryConfig {
+    // How long a loaded device list is served before callers must wait for a reload.
+    private Duration ttl = Duration.ofMinutes(5);
+    // A background reload starts this long before expiry if the list was read since the last load.
+    private Duration refreshAhead = Duration.ofSeconds(30);
+    // Parse device lists with the streaming LetPotDeviceListDecoder instead of Jackson databind.
+    private boolean streamingDecode = false;
+}
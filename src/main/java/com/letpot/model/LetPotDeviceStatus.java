@@ -0,0 +1,23 @@
+package com.letpot.model;
+
+import lombok.Value;
+
+@Value
+public class LetPotDeviceStatus {
+    String deviceId;
+    // Message id from the status frame header.
+    int messageId;
+    long receivedAtMillis;
+    // 1 = on, 0 = off
+    int pumpMode;
+    boolean pumpCycleOn;
+    int pumpDurationSeconds;
+    int pumpCycleOnSeconds;
+    int pumpCycleOffSeconds;
+    // Decoded status payload, including fields not mapped above.
+    byte[] raw;
+
+    public boolean isPumpOn() {
+        return pumpMode == 1;
+    }
+}
@@ -0,0 +1,17 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+public class LetPotFleetConfig {
+    // Ring points per worker node; more points spread accounts more evenly at the cost of a larger ring.
+    private int virtualNodes = 512;
+    // Logins run in parallel after a rebalance, at most this many at a time.
+    private int maxConcurrentLogins = 8;
+    // An owned account whose login failed is retried after this delay.
+    private Duration loginRetryDelay = Duration.ofSeconds(30);
+    // Device cache settings for every account session.
+    private LetPotDeviceRegistryConfig deviceRegistry = new LetPotDeviceRegistryConfig();
+}
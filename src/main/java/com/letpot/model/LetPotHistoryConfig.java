@@ -0,0 +1,22 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+@Data
+public class LetPotHistoryConfig {
+    // Directory holding the device dictionary and the segment files; created if missing.
+    private Path directory;
+    // Size each segment file is mapped at. Files are sparse, so unused capacity takes no disk space.
+    private int segmentCapacityBytes = 16 * 1024 * 1024;
+    // Segments whose newest event is older than this are deleted.
+    private Duration retention = Duration.ofDays(180);
+    // Events recorded from MQTT threads wait here for the history's writer thread; when it is full they are dropped.
+    private int writeQueueCapacity = 16 * 1024;
+    // Zone whose calendar days segments and daily aggregates follow.
+    private ZoneId zone = ZoneOffset.UTC;
+}
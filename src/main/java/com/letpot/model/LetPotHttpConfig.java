@@ -0,0 +1,29 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+public class LetPotHttpConfig {
+    public static final String DEFAULT_BASE_URL = "https://api.letpot.net/";
+
+    // Must end with a slash, e.g. http://localhost:8080/ for a mock server.
+    private String baseUrl = DEFAULT_BASE_URL;
+    // Idle keep-alive connections kept per transport, and how long each may stay idle.
+    private int maxIdleConnections = 32;
+    private Duration keepAlive = Duration.ofMinutes(5);
+    // Negotiated over ALPN; HTTP/2 multiplexes concurrent calls to api.letpot.net over one connection.
+    private boolean http2Enabled = true;
+    private Duration connectTimeout = Duration.ofSeconds(10);
+    private Duration readTimeout = Duration.ofSeconds(20);
+    private Duration writeTimeout = Duration.ofSeconds(20);
+    // Whole-call limit including redirects and retries; zero disables it.
+    private Duration callTimeout = Duration.ofSeconds(60);
+    // Calls in flight at once, synchronous ones included; further calls wait up to callTimeout for a slot.
+    private int maxRequests = 64;
+    // Per-host limit for asynchronous calls only; further ones wait in the dispatcher's queue.
+    private int maxRequestsPerHost = 32;
+    // Rate limiting, circuit breaking and retries for all API calls; null disables them.
+    private LetPotResilienceConfig resilience;
+}
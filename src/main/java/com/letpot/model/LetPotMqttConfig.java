@@ -0,0 +1,39 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Data
+public class LetPotMqttConfig {
+    public static final String DEFAULT_BROKER_URL = "wss://broker.letpot.net:443/mqttwss";
+
+    // Any Paho URL works, e.g. tcp://localhost:1883 for a local broker.
+    private String brokerUrl = DEFAULT_BROKER_URL;
+    // Open broker connections, one per LetPot user, beyond which idle ones are evicted. Connections with queued
+    // commands or subscriptions are never evicted; the pool goes over the limit until the sweeper finds them idle.
+    private int maxConnections = 16;
+    // Connections unused for this long are closed by the pool's sweeper.
+    private Duration idleTimeout = Duration.ofMinutes(10);
+    private Duration idleSweepInterval = Duration.ofMinutes(1);
+    // Commands awaiting a broker ack per connection; also passed to Paho as its in-flight limit.
+    private int maxInflight = 10;
+    // Commands waiting for an in-flight slot per connection before new submissions are rejected.
+    private int maxQueuedCommands = 10_000;
+    // How long a tracked command waits for the device to echo its status before failing.
+    private Duration ackTimeout = Duration.ofSeconds(30);
+    // Commands are journaled here before publishing and replayed after a reconnect or restart; null disables it.
+    private Path journalFile;
+    // Size of the mapped journal file; it is compacted down to unacknowledged commands when full.
+    private int journalCapacityBytes = 64 * 1024 * 1024;
+    // One fsync per interval covers every command journaled during it.
+    private Duration journalGroupCommitInterval = Duration.ofMillis(5);
+    // Publish only after the fsync, so commands also survive power loss; costs up to one interval per command.
+    private boolean journalSyncBeforePublish = false;
+    // Rate limiting per account, circuit breaking and retries for publishes; null disables them.
+    // Only commands with a coalesce key are retried, since they carry the full device state.
+    private LetPotResilienceConfig resilience;
+    // Every status report and command outcome is recorded in this device history; null disables it.
+    private LetPotHistoryConfig history;
+}
@@ -0,0 +1,71 @@
+package com.letpot.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class LetPotPumpCommand implements LetPotDeviceCommand {
+
+    // Durations are sent as two bytes.
+    public static final int MAX_SECONDS = 0xFFFF;
+    // on() returns shared instances for durations up to this, so schedulers allocate nothing per command.
+    public static final int CACHED_DURATION_SECONDS = 3600;
+    private static final LetPotPumpCommand OFF = new LetPotPumpCommand(false, 0, false, 0, 0);
+    private static final AtomicReferenceArray<LetPotPumpCommand> ON = new AtomicReferenceArray<>(CACHED_DURATION_SECONDS + 1);
+
+    boolean on;
+    int durationSeconds;
+    // Cycle mode: while on, the pump alternates between cycleOnSeconds running and cycleOffSeconds resting.
+    boolean cycleOn;
+    int cycleOnSeconds;
+    int cycleOffSeconds;
+
+    public static LetPotPumpCommand on(int durationSeconds) {
+        checkSeconds("durationSeconds", durationSeconds);
+        if (durationSeconds > CACHED_DURATION_SECONDS) {
+            return new LetPotPumpCommand(true, durationSeconds, false, 0, 0);
+        }
+        LetPotPumpCommand command = ON.get(durationSeconds);
+        if (command == null) {
+            // Racing threads may both create one; either is fine.
+            command = new LetPotPumpCommand(true, durationSeconds, false, 0, 0);
+            ON.set(durationSeconds, command);
+        }
+        return command;
+    }
+
+    public static LetPotPumpCommand off() {
+        return OFF;
+    }
+
+    public static LetPotPumpCommand cycle(int durationSeconds, int cycleOnSeconds, int cycleOffSeconds) {
+        checkSeconds("durationSeconds", durationSeconds);
+        checkSeconds("cycleOnSeconds", cycleOnSeconds);
+        checkSeconds("cycleOffSeconds", cycleOffSeconds);
+        return new LetPotPumpCommand(true, durationSeconds, true, cycleOnSeconds, cycleOffSeconds);
+    }
+
+    @Override
+    public String getCommandType() {
+        if (!on) {
+            return "pump_off";
+        }
+        return cycleOn ? "pump_cycle" : "pump_on";
+    }
+
+    // Pump commands carry the full pump state, so a newer one makes any still-queued one redundant.
+    @Override
+    public String getCoalesceKey() {
+        return "pump";
+    }
+
+    private static void checkSeconds(String name, int seconds) {
+        if (seconds < 0 || seconds > MAX_SECONDS) {
+            throw new IllegalArgumentException(name + " must be between 0 and " + MAX_SECONDS + ": " + seconds);
+        }
+    }
+}
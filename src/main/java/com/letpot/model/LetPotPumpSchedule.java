@@ -0,0 +1,37 @@
+package com.letpot.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.jackson.Jacksonized;
+
+@Value
+@Builder(toBuilder = true)
+@Jacksonized
+public class LetPotPumpSchedule {
+    String id;
+    String deviceId;
+    // Start of the first run, in epoch milliseconds.
+    long startEpochMillis;
+    int durationSeconds;
+    // Time from one run's start to the next; zero runs once.
+    long repeatEverySeconds;
+
+    @JsonIgnore
+    public boolean isRepeating() {
+        return repeatEverySeconds > 0;
+    }
+
+    // Start of the first run at or after the given time, or -1 if this is a one-off whose run has passed.
+    public long nextRunAtOrAfter(long epochMillis) {
+        if (startEpochMillis >= epochMillis) {
+            return startEpochMillis;
+        }
+        if (!isRepeating()) {
+            return -1;
+        }
+        long periodMillis = repeatEverySeconds * 1000;
+        long periods = (epochMillis - startEpochMillis + periodMillis - 1) / periodMillis;
+        return startEpochMillis + periods * periodMillis;
+    }
+}
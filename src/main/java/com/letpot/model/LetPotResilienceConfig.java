@@ -0,0 +1,19 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+public class LetPotResilienceConfig {
+    // Token bucket per account: sustained calls per second and how many may burst; zero disables rate limiting.
+    private double permitsPerSecond = 10;
+    private int burst = 20;
+    // Consecutive failures that open the circuit, and how long it stays open before a single probe call.
+    private int failureThreshold = 5;
+    private Duration openDuration = Duration.ofSeconds(30);
+    // Attempts per idempotent call including the first; retries back off exponentially with full jitter.
+    private int maxAttempts = 3;
+    private Duration initialBackoff = Duration.ofMillis(200);
+    private Duration maxBackoff = Duration.ofSeconds(5);
+}
@@ -0,0 +1,20 @@
+package com.letpot.model;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Data
+public class LetPotScheduleConfig {
+    // Timer wheel resolution; actuations fire up to one tick late.
+    private Duration tickDuration = Duration.ofMillis(100);
+    // Slots per wheel rotation; schedules further out than one rotation wait in their slot for extra rounds.
+    private int wheelSize = 512;
+    // Due actuations with the same command are sent as bulk commands of at most this many devices.
+    private int maxBatchSize = 500;
+    // Schedules are saved here and reloaded on start; null keeps them in memory only.
+    private Path persistenceFile;
+    // Changes are written at most this often, and once more on close.
+    private Duration persistInterval = Duration.ofSeconds(5);
+}
@@ -0,0 +1,26 @@
+package com.letpot.model;
+
+// Asks the device for its current status, which it reports on its status topic.
+public final class LetPotStatusRequest implements LetPotDeviceCommand {
+
+    public static final LetPotStatusRequest INSTANCE = new LetPotStatusRequest();
+
+    private LetPotStatusRequest() {
+    }
+
+    @Override
+    public String getCommandType() {
+        return "status_request";
+    }
+
+    // Never coalesced: a replaced request would complete without the status its caller is waiting for.
+    @Override
+    public String getCoalesceKey() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "LetPotStatusRequest";
+    }
+}
@@ -0,0 +1,130 @@
+package com.letpot.service;
+
+import com.letpot.dto.LetPotDeviceDto;
+import com.letpot.model.LetPotBulkCommandReport;
+import com.letpot.model.LetPotCommandAck;
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotCredentials;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.util.LetPotExecutors;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking view of a {@link LetPotService}. Calls that may block (REST requests, a token refresh before a
+ * command) run on the executor, which by default uses a virtual thread per call on Java 21 and a bounded pool of
+ * daemon platform threads before that, so thousands of concurrent operations do not need thousands of platform
+ * threads.
+ */
+public class LetPotAsyncService {
+
+    private final LetPotService service;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    public LetPotAsyncService(LetPotService service) {
+        this(service, LetPotExecutors.newBlockingIoExecutor("letpot-async-"), true);
+    }
+
+    // The executor is not shut down by close().
+    public LetPotAsyncService(LetPotService service, ExecutorService executor) {
+        this(service, executor, false);
+    }
+
+    private LetPotAsyncService(LetPotService service, ExecutorService executor, boolean ownsExecutor) {
+        this.service = service;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public CompletableFuture<LetPotCredentials> loginAsync(String email, String password) {
+        return supply(() -> service.login(email, password));
+    }
+
+    public CompletableFuture<List<LetPotDeviceDto>> getDevicesAsync() {
+        return supply(service::getDevices);
+    }
+
+    public CompletableFuture<List<LetPotDeviceDto>> refreshDevicesAsync() {
+        return supply(service::refreshDevices);
+    }
+
+    public CompletableFuture<Optional<LetPotDeviceDto>> findDeviceAsync(String deviceId) {
+        return supply(() -> service.findDevice(deviceId));
+    }
+
+    public CompletableFuture<Void> forEachDeviceAsync(Consumer<LetPotDeviceDto> consumer) {
+        return supply(() -> {
+            service.forEachDevice(consumer);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> turnOnDeviceAsync(String deviceId, int durationSeconds) {
+        return compose(() -> service.turnOnDeviceAsync(deviceId, durationSeconds));
+    }
+
+    public CompletableFuture<Void> turnOffDeviceAsync(String deviceId) {
+        return compose(() -> service.turnOffDeviceAsync(deviceId));
+    }
+
+    public CompletableFuture<LetPotCommandStatus> sendPumpCommandAsync(String deviceId, LetPotPumpCommand command) {
+        return compose(() -> service.sendPumpCommandAsync(deviceId, command));
+    }
+
+    public CompletableFuture<LetPotCommandAck> sendPumpCommandTrackedAsync(String deviceId, LetPotPumpCommand command) {
+        return compose(() -> service.sendPumpCommandTrackedAsync(deviceId, command));
+    }
+
+    public CompletableFuture<LetPotCommandAck> requestStatusAsync(String deviceId) {
+        return compose(() -> service.requestStatusAsync(deviceId));
+    }
+
+    public CompletableFuture<LetPotBulkCommandReport> sendBulkCommandAsync(Collection<String> deviceIds,
+                                                                           LetPotPumpCommand command) {
+        return compose(() -> service.sendBulkCommandAsync(deviceIds, command));
+    }
+
+    public CompletableFuture<LetPotBulkCommandReport> sendBulkCommandAsync(Predicate<LetPotDeviceDto> filter,
+                                                                           LetPotPumpCommand command) {
+        return supply(() -> service.sendBulkCommand(filter, command));
+    }
+
+    public CompletableFuture<Void> testDeviceAsync(String deviceId) {
+        return compose(() -> service.testDeviceAsync(deviceId));
+    }
+
+    public LetPotService getService() {
+        return service;
+    }
+
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    // A saturated or closed executor fails the returned future instead of throwing at the caller.
+    private <T> CompletableFuture<T> supply(Supplier<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(call, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // The service's async methods still read credentials on the calling thread, which can block on a
+    // token refresh, so they are started from the executor too.
+    private <T> CompletableFuture<T> compose(Supplier<CompletableFuture<T>> call) {
+        return supply(call).thenCompose(Function.identity());
+    }
+}
@@ -0,0 +1,85 @@
+package com.letpot.service;
+
+import com.letpot.util.LetPotLatencyHistogram;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Command -> broker -> device latency distributions for tracked commands, per device and per command type.
+public class LetPotCommandLatencyStats {
+
+    private final Map<String, Stages> byDevice = new ConcurrentHashMap<>();
+    private final Map<String, Stages> byCommandType = new ConcurrentHashMap<>();
+    private final Stages overall = new Stages();
+
+    void record(String deviceId, String commandType, long brokerLatencyNanos, long deviceLatencyNanos) {
+        overall.record(brokerLatencyNanos, deviceLatencyNanos);
+        byDevice.computeIfAbsent(deviceId, id -> new Stages()).record(brokerLatencyNanos, deviceLatencyNanos);
+        byCommandType.computeIfAbsent(commandType, type -> new Stages()).record(brokerLatencyNanos, deviceLatencyNanos);
+    }
+
+    // For echoes that overtook the broker's ack: the device stage was not measured.
+    void recordBrokerOnly(String deviceId, String commandType, long brokerLatencyNanos) {
+        overall.recordBrokerOnly(brokerLatencyNanos);
+        byDevice.computeIfAbsent(deviceId, id -> new Stages()).recordBrokerOnly(brokerLatencyNanos);
+        byCommandType.computeIfAbsent(commandType, type -> new Stages()).recordBrokerOnly(brokerLatencyNanos);
+    }
+
+    public Stages getOverall() {
+        return overall;
+    }
+
+    public Stages forDevice(String deviceId) {
+        return byDevice.get(deviceId);
+    }
+
+    public Stages forCommandType(String commandType) {
+        return byCommandType.get(commandType);
+    }
+
+    public Set<String> getDeviceIds() {
+        return Collections.unmodifiableSet(byDevice.keySet());
+    }
+
+    public Set<String> getCommandTypes() {
+        return Collections.unmodifiableSet(byCommandType.keySet());
+    }
+
+    public static class Stages {
+        private final LetPotLatencyHistogram broker = new LetPotLatencyHistogram();
+        private final LetPotLatencyHistogram device = new LetPotLatencyHistogram();
+        private final LetPotLatencyHistogram total = new LetPotLatencyHistogram();
+
+        void record(long brokerLatencyNanos, long deviceLatencyNanos) {
+            broker.record(brokerLatencyNanos);
+            device.record(deviceLatencyNanos);
+            total.record(brokerLatencyNanos + deviceLatencyNanos);
+        }
+
+        void recordBrokerOnly(long brokerLatencyNanos) {
+            broker.record(brokerLatencyNanos);
+            total.record(brokerLatencyNanos);
+        }
+
+        // Submit until the broker acked the command.
+        public LetPotLatencyHistogram getBroker() {
+            return broker;
+        }
+
+        // Broker ack until the device echoed its new status. Echoes that overtook the ack are not sampled.
+        public LetPotLatencyHistogram getDevice() {
+            return device;
+        }
+
+        public LetPotLatencyHistogram getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "broker[" + broker + "] device[" + device + "] total[" + total + "]";
+        }
+    }
+}
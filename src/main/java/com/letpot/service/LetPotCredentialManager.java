@@ -0,0 +1,257 @@
+package com.letpot.service;
+
+import com.letpot.client.LetPotApiClient;
+import com.letpot.dto.LetPotAuthenticationResponseDto;
+import com.letpot.exception.LetPotAuthenticationException;
+import com.letpot.exception.LetPotConnectionException;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotCredentials;
+import com.letpot.util.LetPotExecutors;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LetPotCredentialManager {
+
+    public static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes(5);
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+    private static final Logger log = LoggerFactory.getLogger(LetPotCredentialManager.class);
+
+    private final LetPotApiClient letPotApiClient;
+    // Only times refreshes; they run on ioExecutor.
+    private final ScheduledExecutorService scheduler;
+    private final Executor ioExecutor = LetPotExecutors.sharedBlockingIoExecutor();
+    private final Duration refreshAhead;
+    private final LetPotMetrics metrics;
+    private final AtomicReference<LetPotCredentials> credentials = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<LetPotCredentials>> inFlightRefresh = new AtomicReference<>();
+    private volatile ScheduledFuture<?> refreshTask;
+    private volatile boolean closed;
+
+    public LetPotCredentialManager(LetPotApiClient letPotApiClient, ScheduledExecutorService scheduler, Duration refreshAhead) {
+        this(letPotApiClient, scheduler, refreshAhead, LetPotMetrics.noop());
+    }
+
+    public LetPotCredentialManager(LetPotApiClient letPotApiClient, ScheduledExecutorService scheduler, Duration refreshAhead,
+                                   LetPotMetrics metrics) {
+        this.letPotApiClient = letPotApiClient;
+        this.scheduler = scheduler;
+        this.refreshAhead = refreshAhead;
+        this.metrics = metrics;
+    }
+
+    public LetPotCredentials login(String email, String password) {
+        Map<String, String> loginForm = new HashMap<>();
+        loginForm.put("loginType", "EMAIL");
+        loginForm.put("email", email);
+        loginForm.put("password", password);
+        loginForm.put("refresh_token", "");
+
+        try {
+            Response<LetPotAuthenticationResponseDto> response = letPotApiClient.login(loginForm).execute();
+            if (!response.isSuccessful() || response.body() == null || !response.body().isOk()) {
+                throw new LetPotAuthenticationException("LetPot login failed: " +
+                    (response.errorBody() != null ? response.errorBody().string() : "Unknown error"));
+            }
+
+            LetPotAuthenticationResponseDto.DataBlock data = response.body().getData();
+            String accessToken = data.getToken().getToken();
+
+            LetPotCredentials loggedIn = LetPotCredentials.builder()
+                    .letpotUserId(getUidFromToken(accessToken))
+                    .email(email.toLowerCase())
+                    .accessToken(accessToken)
+                    .accessTokenExpires(data.getToken().getExp())
+                    .refreshToken(data.getRefreshToken().getToken())
+                    .refreshTokenExpires(data.getRefreshToken().getExp())
+                    .build();
+            publish(loggedIn);
+            return loggedIn;
+        } catch (IOException e) {
+            throw new LetPotConnectionException("Failed to connect to LetPot API", e);
+        }
+    }
+
+    // Hot path: a volatile read. Only if the background refresh has fallen behind and the access token
+    // is already expired does the caller wait, and then on the one shared refresh.
+    public LetPotCredentials current() {
+        LetPotCredentials current = credentials.get();
+        if (current == null) {
+            throw new LetPotAuthenticationException("Not logged in. Call login() first.");
+        }
+        if (Instant.now().getEpochSecond() < current.getAccessTokenExpires()) {
+            return current;
+        }
+        try {
+            return refresh().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Single-flight: concurrent callers share one call to v1/auth/refresh.
+    public CompletableFuture<LetPotCredentials> refresh() {
+        CompletableFuture<LetPotCredentials> mine = new CompletableFuture<>();
+        CompletableFuture<LetPotCredentials> existing = inFlightRefresh.compareAndExchange(null, mine);
+        if (existing != null) {
+            return existing;
+        }
+        long start = System.nanoTime();
+        LetPotCredentials refreshed = null;
+        RuntimeException failure = null;
+        try {
+            LetPotCredentials current = credentials.get();
+            refreshed = doRefresh(current);
+            // If a login() replaced the credentials this refresh started from, keep them, possibly for another
+            // account, rather than writing the old account back; that login scheduled its own refresh.
+            if (!publishIfCurrent(current, refreshed)) {
+                log.debug("Dropping token refresh superseded by a login");
+                refreshed = credentials.get();
+            }
+            metrics.recordTokenRefresh(true, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            metrics.recordTokenRefresh(false, System.nanoTime() - start);
+            failure = e;
+        } finally {
+            // Cleared before completing, so later callers never get an already finished refresh.
+            inFlightRefresh.set(null);
+        }
+        if (failure != null) {
+            mine.completeExceptionally(failure);
+        } else {
+            mine.complete(refreshed);
+        }
+        return mine;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        cancelRefresh();
+    }
+
+    private LetPotCredentials doRefresh(LetPotCredentials current) {
+        if (current == null) {
+            throw new LetPotAuthenticationException("Not logged in. Call login() first.");
+        }
+        if (Instant.now().getEpochSecond() >= current.getRefreshTokenExpires()) {
+            throw new LetPotAuthenticationException("LetPot refresh token has expired. Please log in again.");
+        }
+
+        try {
+            Response<LetPotAuthenticationResponseDto> response =
+                letPotApiClient.refreshToken(current.getRefreshToken(), current.getLetpotUserId()).execute();
+
+            if (!response.isSuccessful() || response.body() == null || !response.body().isOk()) {
+                throw new LetPotAuthenticationException("Failed to refresh token: " +
+                    (response.errorBody() != null ? response.errorBody().string() : "Unknown error"));
+            }
+
+            LetPotAuthenticationResponseDto.DataBlock data = response.body().getData();
+            String newAccessToken = data.getToken().getToken();
+
+            LetPotCredentials.LetPotCredentialsBuilder refreshed = current.toBuilder()
+                    .accessToken(newAccessToken)
+                    .letpotUserId(getUidFromToken(newAccessToken))
+                    .accessTokenExpires(data.getToken().getExp());
+            if (data.getRefreshToken() != null) {
+                refreshed.refreshToken(data.getRefreshToken().getToken())
+                        .refreshTokenExpires(data.getRefreshToken().getExp());
+            }
+            log.info("Refreshed LetPot access token for user {}", current.getLetpotUserId());
+            return refreshed.build();
+        } catch (IOException e) {
+            throw new LetPotConnectionException("Failed to refresh token", e);
+        }
+    }
+
+    // Synchronized with publishIfCurrent, so the scheduled refresh always belongs to the credentials left in place.
+    private synchronized void publish(LetPotCredentials newCredentials) {
+        credentials.set(newCredentials);
+        scheduleRefreshFor(newCredentials);
+    }
+
+    private synchronized boolean publishIfCurrent(LetPotCredentials expected, LetPotCredentials newCredentials) {
+        if (!credentials.compareAndSet(expected, newCredentials)) {
+            return false;
+        }
+        scheduleRefreshFor(newCredentials);
+        return true;
+    }
+
+    private void scheduleRefreshFor(LetPotCredentials newCredentials) {
+        long remaining = newCredentials.getAccessTokenExpires() - Instant.now().getEpochSecond();
+        // Tokens that live shorter than refreshAhead are refreshed at half their lifetime instead of
+        // immediately, which would otherwise turn into a refresh loop.
+        long delay = remaining > 2 * refreshAhead.getSeconds() ? remaining - refreshAhead.getSeconds() : Math.max(1, remaining / 2);
+        scheduleRefresh(delay, TimeUnit.SECONDS);
+    }
+
+    // Synchronized so that two callers cannot both cancel the old task and leave one of theirs running.
+    private synchronized void scheduleRefresh(long delay, TimeUnit unit) {
+        cancelRefresh();
+        // A refresh already handed to the I/O executor can finish after close(); it must not reschedule.
+        if (closed) {
+            return;
+        }
+        refreshTask = scheduler.schedule(this::startBackgroundRefresh, delay, unit);
+    }
+
+    private void startBackgroundRefresh() {
+        try {
+            ioExecutor.execute(this::backgroundRefresh);
+        } catch (RejectedExecutionException e) {
+            log.warn("I/O executor saturated, retrying token refresh in {}s", RETRY_DELAY.getSeconds());
+            scheduleRefresh(RETRY_DELAY.getSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    private void backgroundRefresh() {
+        try {
+            refresh().join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof LetPotAuthenticationException) {
+                // Refresh token expired or rejected; callers will see the error and must log in again.
+                log.error("Background token refresh failed: {}", cause.getMessage());
+                return;
+            }
+            log.warn("Background token refresh failed, retrying in {}s: {}", RETRY_DELAY.getSeconds(), cause.getMessage());
+            scheduleRefresh(RETRY_DELAY.getSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    private void cancelRefresh() {
+        ScheduledFuture<?> task = refreshTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    private String getUidFromToken(String token) {
+        // The LetPot token is not signed with a verifiable key, so we parse it without a key.
+        // This is acceptable as we are not verifying the token's integrity here,
+        // only extracting the payload data from a token we just received from the trusted API.
+        String unsignedToken = token.substring(0, token.lastIndexOf('.') + 1);
+        Claims claims = Jwts.parserBuilder().build().parseClaimsJwt(unsignedToken).getBody();
+        return claims.get("uid", String.class);
+    }
+}
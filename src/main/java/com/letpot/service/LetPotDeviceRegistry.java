@@ -0,0 +1,187 @@
+package com.letpot.service;
+
+import com.letpot.dto.LetPotDeviceDto;
+import com.letpot.model.LetPotDeviceRegistryConfig;
+import com.letpot.util.LetPotExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+public class LetPotDeviceRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(LetPotDeviceRegistry.class);
+
+    private final Supplier<List<LetPotDeviceDto>> loader;
+    private final LetPotDeviceRegistryConfig config;
+    // Only times refresh-ahead; the reload itself runs on ioExecutor.
+    private final ScheduledExecutorService scheduler;
+    private final Executor ioExecutor = LetPotExecutors.sharedBlockingIoExecutor();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<Snapshot>> inFlight = new AtomicReference<>();
+    // Bumped by invalidate() so a load that started before it cannot repopulate the cache.
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean readSinceLoad;
+    private volatile ScheduledFuture<?> refreshTask;
+
+    public LetPotDeviceRegistry(Supplier<List<LetPotDeviceDto>> loader, LetPotDeviceRegistryConfig config,
+                                ScheduledExecutorService scheduler) {
+        this.loader = loader;
+        this.config = config;
+        this.scheduler = scheduler;
+    }
+
+    public List<LetPotDeviceDto> getDevices() {
+        return current().devices;
+    }
+
+    public Optional<LetPotDeviceDto> findById(String deviceId) {
+        return Optional.ofNullable(current().byId.get(deviceId));
+    }
+
+    public Optional<LetPotDeviceDto> findByName(String deviceName) {
+        return Optional.ofNullable(current().byName.get(deviceName));
+    }
+
+    public List<LetPotDeviceDto> findByModel(String deviceModel) {
+        return current().byModel.getOrDefault(deviceModel, Collections.emptyList());
+    }
+
+    // Forces a reload, sharing it with any load already in progress.
+    public List<LetPotDeviceDto> refresh() {
+        return join(load()).devices;
+    }
+
+    public void invalidate() {
+        generation.incrementAndGet();
+        snapshot.set(null);
+        cancelRefresh();
+    }
+
+    public void close() {
+        invalidate();
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot.get();
+        if (current != null && System.nanoTime() - current.expiresAtNanos < 0) {
+            readSinceLoad = true;
+            return current;
+        }
+        return join(load());
+    }
+
+    // Single-flight: the first caller runs the loader, concurrent callers wait on the same future.
+    private CompletableFuture<Snapshot> load() {
+        CompletableFuture<Snapshot> mine = new CompletableFuture<>();
+        CompletableFuture<Snapshot> existing = inFlight.compareAndExchange(null, mine);
+        if (existing != null) {
+            return existing;
+        }
+        long loadGeneration = generation.get();
+        Snapshot loaded = null;
+        RuntimeException failure = null;
+        try {
+            loaded = new Snapshot(loader.get(), System.nanoTime() + config.getTtl().toNanos());
+            if (generation.get() == loadGeneration) {
+                snapshot.set(loaded);
+                readSinceLoad = false;
+                scheduleRefresh();
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            // Clear before completing, so a caller arriving now starts a new load instead of
+            // picking up this one after it has already finished.
+            inFlight.set(null);
+        }
+        if (failure != null) {
+            mine.completeExceptionally(failure);
+        } else {
+            mine.complete(loaded);
+        }
+        return mine;
+    }
+
+    private void scheduleRefresh() {
+        cancelRefresh();
+        long delayNanos = config.getTtl().minus(config.getRefreshAhead()).toNanos();
+        if (delayNanos <= 0) {
+            return;
+        }
+        refreshTask = scheduler.schedule(() -> {
+            if (!readSinceLoad) {
+                // Nobody used the list this period; let it expire instead of polling an idle account.
+                return;
+            }
+            try {
+                ioExecutor.execute(() -> {
+                    try {
+                        load();
+                    } catch (RuntimeException e) {
+                        log.warn("Background device list refresh failed: {}", e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The list expires as usual and the next read loads it.
+                log.warn("I/O executor saturated, skipping background device list refresh");
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelRefresh() {
+        ScheduledFuture<?> task = refreshTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    private static Snapshot join(CompletableFuture<Snapshot> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class Snapshot {
+        private final List<LetPotDeviceDto> devices;
+        private final Map<String, LetPotDeviceDto> byId = new HashMap<>();
+        private final Map<String, LetPotDeviceDto> byName = new HashMap<>();
+        private final Map<String, List<LetPotDeviceDto>> byModel = new HashMap<>();
+        private final long expiresAtNanos;
+
+        Snapshot(List<LetPotDeviceDto> devices, long expiresAtNanos) {
+            this.devices = devices == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(devices));
+            this.expiresAtNanos = expiresAtNanos;
+            for (LetPotDeviceDto device : this.devices) {
+                byId.put(device.getDeviceId(), device);
+                if (device.getDeviceName() != null) {
+                    byName.putIfAbsent(device.getDeviceName(), device);
+                }
+                if (device.getDeviceModel() != null) {
+                    byModel.computeIfAbsent(device.getDeviceModel(), m -> new ArrayList<>()).add(device);
+                }
+            }
+            byModel.replaceAll((model, list) -> Collections.unmodifiableList(list));
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.letpot.service;
+
+import com.letpot.model.LetPotDeviceStatus;
+
+@FunctionalInterface
+public interface LetPotDeviceStatusListener {
+    // Called on the MQTT callback thread whenever a device reports a state different from its last report.
+    // Keep it short and hand off anything slow.
+    void onStatus(LetPotDeviceStatus status);
+}
@@ -0,0 +1,308 @@
+package com.letpot.service;
+
+import com.letpot.client.LetPotApiClient;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotFleetConfig;
+import com.letpot.util.LetPotExecutors;
+import com.letpot.util.LetPotHashRing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sessions of many LetPot accounts on a fleet of worker nodes. Every node registers the same accounts, and
+ * a consistent-hash ring over the live members decides which node owns each one; only the owner logs in and keeps a
+ * {@link LetPotService} for it, with its token refresh, device cache and MQTT connection. When members join or leave,
+ * every node rebalances: it closes the sessions it no longer owns and logs in to the accounts it gained, so only
+ * about 1/n of the accounts move. In-process shards are several managers with different node ids sharing a
+ * {@link LetPotInMemoryMembership}.
+ */
+public class LetPotFleetManager {
+
+    private static final Logger log = LoggerFactory.getLogger(LetPotFleetManager.class);
+
+    private final String nodeId;
+    private final LetPotFleetMembership membership;
+    private final LetPotApiClient apiClient;
+    private final LetPotMqttService mqttService;
+    private final LetPotFleetConfig config;
+    private final LetPotMetrics metrics;
+    // Normalized email to password, for every account in the fleet whichever node owns it.
+    private final Map<String, String> accounts = new ConcurrentHashMap<>();
+    // Sessions of the accounts this node owns and has logged in to.
+    private final Map<String, LetPotService> sessions = new ConcurrentHashMap<>();
+    // Rebalances run one at a time, so the ring and the set of sessions only change on this thread.
+    private final ExecutorService rebalancer;
+    private final ThreadPoolExecutor loginExecutor;
+    // Logins not yet handed to the rebalancer; close() cancels them so a rebalance never waits on a dead executor.
+    private final Set<CompletableFuture<LetPotService>> pendingLogins = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+    private volatile LetPotHashRing ring;
+    private LetPotSubscription membershipWatch;
+    // The queued rebalance that has not started yet; later requests share it. Guarded by this.
+    private CompletableFuture<Void> pendingRebalance;
+    private boolean closed;
+
+    // The MQTT service is shared by all sessions and not closed by close().
+    public LetPotFleetManager(String nodeId, LetPotFleetMembership membership, LetPotApiClient apiClient,
+                              LetPotMqttService mqttService) {
+        this(nodeId, membership, apiClient, mqttService, new LetPotFleetConfig(), LetPotMetrics.noop());
+    }
+
+    public LetPotFleetManager(String nodeId, LetPotFleetMembership membership, LetPotApiClient apiClient,
+                              LetPotMqttService mqttService, LetPotFleetConfig config, LetPotMetrics metrics) {
+        if (config.getMaxConcurrentLogins() < 1) {
+            throw new IllegalArgumentException("maxConcurrentLogins must be at least 1");
+        }
+        this.nodeId = nodeId;
+        this.membership = membership;
+        this.apiClient = apiClient;
+        this.mqttService = mqttService;
+        this.config = config;
+        this.metrics = metrics;
+        this.ring = new LetPotHashRing(Collections.emptySet(), config.getVirtualNodes());
+        this.rebalancer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "letpot-fleet-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger loginThreads = new AtomicInteger();
+        this.loginExecutor = new ThreadPoolExecutor(config.getMaxConcurrentLogins(), config.getMaxConcurrentLogins(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "letpot-fleet-login-" + loginThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        loginExecutor.allowCoreThreadTimeOut(true);
+        metrics.registerGauge("fleet." + nodeId + ".sessions", sessions::size);
+        metrics.registerGauge("fleet." + nodeId + ".accounts", accounts::size);
+    }
+
+    // Joins the membership; the returned future completes once this node has logged in to the accounts it owns.
+    public CompletableFuture<Void> start() {
+        synchronized (this) {
+            membershipWatch = membership.watch(members -> rebalance());
+        }
+        membership.join(nodeId);
+        return rebalance();
+    }
+
+    // Adds or updates an account. Register every account on every node; only its owner logs in.
+    public CompletableFuture<Void> addAccount(String email, String password) {
+        accounts.put(normalize(email), password);
+        return rebalance();
+    }
+
+    public CompletableFuture<Void> addAccounts(Map<String, String> credentialsByEmail) {
+        credentialsByEmail.forEach((email, password) -> accounts.put(normalize(email), password));
+        return rebalance();
+    }
+
+    public CompletableFuture<Void> removeAccount(String email) {
+        accounts.remove(normalize(email));
+        return rebalance();
+    }
+
+    // Node that owns the account under the current ring, or null before this node has seen any members.
+    public String ownerOf(String email) {
+        return ring.ownerOf(normalize(email));
+    }
+
+    public boolean isOwner(String email) {
+        return nodeId.equals(ownerOf(email));
+    }
+
+    // Empty if another node owns the account or its login has not succeeded yet.
+    public Optional<LetPotService> getSession(String email) {
+        return Optional.ofNullable(sessions.get(normalize(email)));
+    }
+
+    public Set<String> getOwnedAccounts() {
+        return Collections.unmodifiableSet(new HashSet<>(sessions.keySet()));
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public Set<String> getMembers() {
+        return ring.getNodes();
+    }
+
+    // Recomputes ownership from the current members. Requests arriving while a rebalance is queued share it.
+    public synchronized CompletableFuture<Void> rebalance() {
+        if (closed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (pendingRebalance == null) {
+            CompletableFuture<Void> run = new CompletableFuture<>();
+            pendingRebalance = run;
+            rebalancer.execute(() -> {
+                synchronized (this) {
+                    pendingRebalance = null;
+                }
+                try {
+                    doRebalance();
+                    run.complete(null);
+                } catch (RuntimeException e) {
+                    log.warn("Fleet rebalance on node {} failed", nodeId, e);
+                    run.completeExceptionally(e);
+                }
+            });
+        }
+        return pendingRebalance;
+    }
+
+    // Leaves the membership, so the other nodes take over this node's accounts, and closes its sessions.
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (membershipWatch != null) {
+                membershipWatch.close();
+            }
+        }
+        membership.leave(nodeId);
+        // A login still running closes its own session when it finds its future cancelled.
+        for (CompletableFuture<LetPotService> login : pendingLogins) {
+            login.cancel(false);
+        }
+        loginExecutor.shutdown();
+        rebalancer.shutdown();
+        try {
+            rebalancer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String email : sessions.keySet()) {
+            LetPotService session = sessions.remove(email);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private void doRebalance() {
+        LetPotHashRing current = new LetPotHashRing(membership.getMembers(), config.getVirtualNodes());
+        ring = current;
+        int released = 0;
+        for (String email : new ArrayList<>(sessions.keySet())) {
+            if (!accounts.containsKey(email) || !nodeId.equals(current.ownerOf(email))) {
+                // The account's MQTT connection is closed by the pool once idle.
+                LetPotService session = sessions.remove(email);
+                if (session != null) {
+                    session.close();
+                    released++;
+                }
+            }
+        }
+
+        List<String> gained = new ArrayList<>();
+        List<CompletableFuture<LetPotService>> logins = new ArrayList<>();
+        for (Map.Entry<String, String> account : accounts.entrySet()) {
+            String email = account.getKey();
+            if (!sessions.containsKey(email) && nodeId.equals(current.ownerOf(email))) {
+                String password = account.getValue();
+                gained.add(email);
+                logins.add(login(email, password));
+            }
+        }
+        int failed = 0;
+        for (int i = 0; i < gained.size(); i++) {
+            LetPotService session = logins.get(i).exceptionally(e -> null).join();
+            if (session == null) {
+                failed++;
+            } else if (!place(gained.get(i), session)) {
+                session.close();
+            }
+        }
+        if (released > 0 || !gained.isEmpty()) {
+            log.info("Node {} owns {} of {} accounts across {} nodes: {} released, {} gained, {} logins failed",
+                    nodeId, sessions.size(), accounts.size(), current.getNodes().size(), released,
+                    gained.size() - failed, failed);
+        }
+        if (failed > 0 && retryScheduled.compareAndSet(false, true)) {
+            LetPotExecutors.sharedScheduler().schedule(() -> {
+                retryScheduled.set(false);
+                rebalance();
+            }, config.getLoginRetryDelay().toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private CompletableFuture<LetPotService> login(String email, String password) {
+        CompletableFuture<LetPotService> login = new CompletableFuture<>();
+        pendingLogins.add(login);
+        login.whenComplete((session, error) -> pendingLogins.remove(login));
+        try {
+            loginExecutor.execute(() -> {
+                if (login.isDone()) {
+                    return;
+                }
+                LetPotService session;
+                try {
+                    session = openSession(email, password);
+                } catch (RuntimeException e) {
+                    login.completeExceptionally(e);
+                    return;
+                }
+                if (!login.complete(session)) {
+                    // Cancelled by close() while logging in.
+                    session.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            login.completeExceptionally(e);
+        }
+        return login;
+    }
+
+    // Accounts removed or moved while their login ran are released by the rebalance queued after this one.
+    private synchronized boolean place(String email, LetPotService session) {
+        if (closed) {
+            return false;
+        }
+        sessions.put(email, session);
+        return true;
+    }
+
+    private LetPotService openSession(String email, String password) {
+        LetPotService session = new LetPotService(apiClient, mqttService, config.getDeviceRegistry(), metrics);
+        try {
+            session.login(email, password);
+            return session;
+        } catch (RuntimeException e) {
+            log.warn("Login for fleet account {} on node {} failed, retrying in {}", email, nodeId,
+                    config.getLoginRetryDelay(), e);
+            session.close();
+            throw e;
+        }
+    }
+
+    private static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
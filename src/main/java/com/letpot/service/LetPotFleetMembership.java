@@ -0,0 +1,18 @@
+package com.letpot.service;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+// The live worker nodes of a fleet. Back it with a coordination service (ZooKeeper, etcd, a database lease table)
+// to spread accounts across processes; LetPotInMemoryMembership shards them within one process.
+public interface LetPotFleetMembership {
+
+    void join(String nodeId);
+
+    void leave(String nodeId);
+
+    Set<String> getMembers();
+
+    // The listener gets the full member set after every change. Close the returned subscription to stop.
+    LetPotSubscription watch(Consumer<Set<String>> listener);
+}
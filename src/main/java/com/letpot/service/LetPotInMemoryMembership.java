@@ -0,0 +1,50 @@
+package com.letpot.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Membership for in-process shards and tests: several fleet managers sharing one instance split the accounts
+// between them. Listeners are called on the thread that changed the membership.
+public class LetPotInMemoryMembership implements LetPotFleetMembership {
+
+    private final Set<String> members = new TreeSet<>();
+    private final List<Consumer<Set<String>>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void join(String nodeId) {
+        update(nodeId, true);
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        update(nodeId, false);
+    }
+
+    @Override
+    public synchronized Set<String> getMembers() {
+        return Collections.unmodifiableSet(new TreeSet<>(members));
+    }
+
+    @Override
+    public LetPotSubscription watch(Consumer<Set<String>> listener) {
+        listeners.add(listener);
+        return () -> listeners.remove(listener);
+    }
+
+    private void update(String nodeId, boolean joined) {
+        Set<String> snapshot;
+        synchronized (this) {
+            if (!(joined ? members.add(nodeId) : members.remove(nodeId))) {
+                return;
+            }
+            snapshot = Collections.unmodifiableSet(new TreeSet<>(members));
+        }
+        for (Consumer<Set<String>> listener : listeners) {
+            listener.accept(snapshot);
+        }
+    }
+}
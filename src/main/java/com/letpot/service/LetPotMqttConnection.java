@@ -0,0 +1,961 @@
+package com.letpot.service;
+
+import com.letpot.exception.LetPotConnectionException;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotCommandAck;
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotDeviceStatus;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.util.LetPotCommandCodec;
+import com.letpot.util.LetPotCommandJournal;
+import com.letpot.util.LetPotDeviceHistory;
+import com.letpot.util.LetPotExecutors;
+import com.letpot.util.LetPotPacketBufferPool;
+import com.letpot.util.LetPotPacketFramer;
+import com.letpot.util.LetPotPacketReassembler;
+import com.letpot.util.LetPotStatusDecoder;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class LetPotMqttConnection {
+
+    private static final String STATUS_TOPIC_SUFFIX = "/data";
+    private static final long RECONNECT_DELAY_SECONDS = 5;
+    private static final Logger log = LoggerFactory.getLogger(LetPotMqttConnection.class);
+    private static final AtomicInteger CLIENT_COUNTER = new AtomicInteger();
+    // Keeps the status topic subscribed while tracked commands wait for their device echo.
+    private static final LetPotDeviceStatusListener ECHO_LISTENER = status -> { };
+
+    private final String email;
+    private final String userId;
+    private final LetPotMqttConfig config;
+    private final LetPotPacketBufferPool bufferPool;
+    private final LetPotCommandLatencyStats latencyStats;
+    private final LetPotMetrics metrics;
+    // Null when journaling is off.
+    private final LetPotCommandJournal journal;
+    // Null when the history is off.
+    private final LetPotDeviceHistory history;
+
+    // Queue state below is guarded by this connection's monitor; no I/O happens while holding it.
+    private final Map<String, DeviceQueue> deviceQueues = new HashMap<>();
+    private final ArrayDeque<DeviceQueue> readyDevices = new ArrayDeque<>();
+    private int queuedCommands;
+    private int inFlightCommands;
+    // Packet slots reserved by in-flight commands; kept within maxInflight so Paho never rejects a publish.
+    private int inFlightPackets;
+    private int messageId;
+    private boolean closed;
+    // Set once a connect has queued the journal's replays; commands only leave their queues while it is set.
+    private boolean publishable;
+    private MqttAsyncClient mqttClient;
+    private CompletableFuture<Void> connectFuture;
+    private boolean everConnected;
+    private final Map<String, DeviceSubscription> subscriptions = new ConcurrentHashMap<>();
+    // Tracked commands per device: count of unfinished ones, and the queued or sent ones awaiting an echo.
+    private final Map<String, Integer> trackedPerDevice = new HashMap<>();
+    private final Map<String, ArrayDeque<TrackedCommand>> awaitingEcho = new HashMap<>();
+    // Journal entries queued or in flight on this connection, so a replay does not send them twice.
+    private final Set<Long> activeJournalSeqs = new HashSet<>();
+
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    LetPotMqttConnection(String email, String userId, LetPotMqttConfig config, LetPotPacketBufferPool bufferPool,
+                         LetPotCommandLatencyStats latencyStats, LetPotMetrics metrics, LetPotCommandJournal journal,
+                         LetPotDeviceHistory history) {
+        this.email = email;
+        this.userId = userId;
+        this.config = config;
+        this.bufferPool = bufferPool;
+        this.latencyStats = latencyStats;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.history = history;
+        // Continue the user's message ids where the last connection, or the last process, left off.
+        this.messageId = journal == null ? 0 : (journal.lastMessageId(userId).orElse(-1) + 1) & 0xFF;
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    synchronized boolean isIdle() {
+        return queuedCommands == 0 && inFlightCommands == 0 && subscriptions.isEmpty();
+    }
+
+    // Stops accepting commands if the connection is idle, atomically with the check, so a caller still holding
+    // it cannot slip a command in before the pool calls close(); that caller gets null and acquires afresh.
+    synchronized boolean retireIfIdle() {
+        if (closed || !isIdle()) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    synchronized int getQueuedCommandCount() {
+        return queuedCommands;
+    }
+
+    synchronized int getInFlightCommandCount() {
+        return inFlightCommands;
+    }
+
+    // Returns null if the pool closed this connection before the command got in; the caller then
+    // acquires a fresh connection. Commands for one device are published strictly in submission order,
+    // commands for different devices run in parallel up to the configured in-flight window.
+    // A queued, not yet started command with the same non-null coalesce key is dropped in favour of
+    // the new one, e.g. an ON immediately followed by an OFF only sends the OFF.
+    CompletableFuture<LetPotCommandStatus> submit(String deviceId, byte[] command, String coalesceKey) {
+        PendingCommand pending = new PendingCommand(deviceId, command, coalesceKey);
+        long submitNanos = System.nanoTime();
+        if (!enqueue(pending)) {
+            return null;
+        }
+        if (history != null) {
+            pending.future.whenComplete((status, error) -> recordCommand(deviceId, commandType(command),
+                    error == null ? status : LetPotCommandStatus.FAILED, submitNanos));
+        }
+        return pending.future;
+    }
+
+    // Like submit, but the returned future completes only once the device echoes a status report after the
+    // broker ack. The echo is matched by the message id of the command's last packet, falling back to the
+    // oldest published command still awaiting an echo from that device. Fails with a TimeoutException after ackTimeout.
+    CompletableFuture<LetPotCommandAck> submitTracked(String deviceId, byte[] command, String coalesceKey, String commandType) {
+        PendingCommand pending = new PendingCommand(deviceId, command, coalesceKey);
+        TrackedCommand tracked = new TrackedCommand(deviceId, commandType, pending);
+        if (beginTracking(deviceId) && subscribe(deviceId, ECHO_LISTENER) == null) {
+            return null;
+        }
+        // Awaiting before it is published: the device's echo can overtake the broker's ack.
+        synchronized (this) {
+            awaitingEcho.computeIfAbsent(deviceId, id -> new ArrayDeque<>()).add(tracked);
+        }
+        if (!enqueue(pending)) {
+            finishTracking(tracked);
+            return null;
+        }
+        pending.future.whenComplete((status, error) -> onBrokerOutcome(tracked, status, error));
+        tracked.future.orTimeout(config.getAckTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((ack, error) -> {
+                    if (error instanceof TimeoutException) {
+                        log.warn("No status echo from device {} within {} for {} command", deviceId,
+                                config.getAckTimeout(), commandType);
+                    }
+                    finishTracking(tracked);
+                    if (history != null) {
+                        recordCommand(deviceId, commandType, error == null ? ack.getStatus() : LetPotCommandStatus.FAILED,
+                                tracked.submitNanos);
+                    }
+                });
+        return tracked.future;
+    }
+
+    private boolean enqueue(PendingCommand pending) {
+        String deviceId = pending.deviceId;
+        String coalesceKey = pending.coalesceKey;
+        if (!journal(pending)) {
+            return true;
+        }
+        PendingCommand superseded = null;
+        List<PendingCommand> toStart;
+        boolean connect;
+        synchronized (this) {
+            if (closed) {
+                retract(pending);
+                return false;
+            }
+            if (queuedCommands >= config.getMaxQueuedCommands()) {
+                retract(pending);
+                pending.future.completeExceptionally(new LetPotConnectionException(
+                        "Command queue for user " + userId + " is full (" + queuedCommands + " queued)"));
+                return true;
+            }
+            lastUsedNanos = System.nanoTime();
+            DeviceQueue queue = deviceQueues.computeIfAbsent(deviceId, id -> new DeviceQueue());
+            if (coalesceKey != null && pending.replay && hasQueued(queue, coalesceKey)) {
+                // A command the caller queued since is newer than the replayed one.
+                retract(pending);
+                pending.future.complete(LetPotCommandStatus.COALESCED);
+                return true;
+            }
+            if (coalesceKey != null) {
+                superseded = removeQueued(queue, coalesceKey);
+                if (superseded != null) {
+                    retract(superseded);
+                }
+            }
+            if (pending.journalSeq >= 0) {
+                activeJournalSeqs.add(pending.journalSeq);
+            }
+            if (pending.replay) {
+                insertInJournalOrder(queue.pending, pending);
+            } else {
+                queue.pending.add(pending);
+            }
+            queuedCommands++;
+            if (!queue.busy && !queue.ready) {
+                queue.ready = true;
+                readyDevices.add(queue);
+            }
+            toStart = takeStartableLocked();
+            connect = needsConnectLocked();
+        }
+        if (superseded != null) {
+            log.debug("Coalesced queued {} command for device {}", coalesceKey, deviceId);
+            superseded.future.complete(LetPotCommandStatus.COALESCED);
+        }
+        startOrConnect(toStart, connect);
+        return true;
+    }
+
+    // A replayed command is older than every command queued since it was journaled.
+    private static void insertInJournalOrder(ArrayDeque<PendingCommand> queue, PendingCommand replay) {
+        List<PendingCommand> newer = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peekLast().journalSeq > replay.journalSeq) {
+            newer.add(queue.pollLast());
+        }
+        queue.addLast(replay);
+        for (int i = newer.size() - 1; i >= 0; i--) {
+            queue.addLast(newer.get(i));
+        }
+    }
+
+    // Writes the command to the journal before it can be published. Returns false if that failed, in which
+    // case the command's future has already failed.
+    private boolean journal(PendingCommand pending) {
+        if (journal == null || pending.journalSeq >= 0) {
+            return true;
+        }
+        try {
+            pending.journalSeq = journal.append(userId, email, pending.deviceId, pending.coalesceKey, pending.command);
+            return true;
+        } catch (RuntimeException e) {
+            pending.future.completeExceptionally(new LetPotConnectionException("Failed to journal command for device "
+                    + pending.deviceId, e));
+            return false;
+        }
+    }
+
+    // Takes a command that will never be published out of the journal.
+    private void retract(PendingCommand pending) {
+        if (pending.journalSeq >= 0) {
+            activeJournalSeqs.remove(pending.journalSeq);
+            journal.markAcked(pending.journalSeq, -1);
+        }
+    }
+
+    // Queues the user's journaled commands that are not already queued or in flight here, oldest first.
+    // Runs after every connect; the pool also calls it at startup for commands left over from the last run.
+    void replayJournal() {
+        if (journal == null) {
+            return;
+        }
+        List<PendingCommand> replays = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (LetPotCommandJournal.Entry entry : journal.unacked(userId)) {
+                if (!activeJournalSeqs.contains(entry.getSeq())) {
+                    PendingCommand replay = new PendingCommand(entry.getDeviceId(), entry.getCommand(), entry.getCoalesceKey());
+                    replay.journalSeq = entry.getSeq();
+                    replay.replay = true;
+                    replays.add(replay);
+                }
+            }
+        }
+        if (replays.isEmpty()) {
+            return;
+        }
+        log.info("Replaying {} unacknowledged commands for user {}", replays.size(), userId);
+        for (PendingCommand replay : replays) {
+            if (!enqueue(replay)) {
+                return;
+            }
+            replay.future.whenComplete((status, error) -> {
+                if (error != null) {
+                    log.warn("Replay of command for device {} failed, keeping it journaled: {}",
+                            replay.deviceId, error.getMessage());
+                }
+            });
+        }
+    }
+
+    private void onBrokerOutcome(TrackedCommand tracked, LetPotCommandStatus status, Throwable error) {
+        long now = System.nanoTime();
+        if (error != null) {
+            tracked.future.completeExceptionally(error);
+            return;
+        }
+        tracked.brokerLatencyNanos = now - tracked.submitNanos;
+        if (status == LetPotCommandStatus.COALESCED) {
+            tracked.future.complete(new LetPotCommandAck(tracked.deviceId, tracked.commandType, -1,
+                    LetPotCommandStatus.COALESCED, tracked.brokerLatencyNanos, 0, null, 0, 0));
+            return;
+        }
+        // Written last: handleMessage reads it first to tell whether the echo came before this ack.
+        tracked.brokerAckNanos = now;
+    }
+
+    // Returns true if this is the device's first unfinished tracked command, i.e. the echo subscription is needed.
+    private synchronized boolean beginTracking(String deviceId) {
+        return trackedPerDevice.merge(deviceId, 1, Integer::sum) == 1;
+    }
+
+    private void finishTracking(TrackedCommand tracked) {
+        synchronized (this) {
+            if (tracked.finished) {
+                return;
+            }
+            tracked.finished = true;
+            ArrayDeque<TrackedCommand> awaiting = awaitingEcho.get(tracked.deviceId);
+            if (awaiting != null && awaiting.remove(tracked) && awaiting.isEmpty()) {
+                awaitingEcho.remove(tracked.deviceId);
+            }
+            if (trackedPerDevice.merge(tracked.deviceId, -1, Integer::sum) > 0) {
+                return;
+            }
+            trackedPerDevice.remove(tracked.deviceId);
+        }
+        unsubscribe(tracked.deviceId, ECHO_LISTENER);
+    }
+
+    private synchronized TrackedCommand takeAwaitingEcho(String deviceId, int messageId) {
+        ArrayDeque<TrackedCommand> awaiting = awaitingEcho.get(deviceId);
+        if (awaiting == null || awaiting.isEmpty()) {
+            return null;
+        }
+        TrackedCommand matched = null;
+        TrackedCommand oldestPublished = null;
+        for (TrackedCommand candidate : awaiting) {
+            int lastMessageId = candidate.pending.lastMessageId;
+            if (lastMessageId == messageId) {
+                matched = candidate;
+                break;
+            }
+            // Still queued commands cannot have caused the report.
+            if (lastMessageId >= 0 && oldestPublished == null) {
+                oldestPublished = candidate;
+            }
+        }
+        if (matched == null) {
+            matched = oldestPublished;
+        }
+        if (matched != null) {
+            awaiting.remove(matched);
+        }
+        return matched;
+    }
+
+    private static boolean hasQueued(DeviceQueue queue, String coalesceKey) {
+        for (PendingCommand queued : queue.pending) {
+            if (coalesceKey.equals(queued.coalesceKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PendingCommand removeQueued(DeviceQueue queue, String coalesceKey) {
+        Iterator<PendingCommand> it = queue.pending.iterator();
+        while (it.hasNext()) {
+            PendingCommand queued = it.next();
+            if (coalesceKey.equals(queued.coalesceKey)) {
+                it.remove();
+                queuedCommands--;
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    // Returns null if the pool closed this connection first. Subscriptions keep the connection open: they
+    // are restored after every (re)connect, and a dropped connection is re-established in the background.
+    // The SUBSCRIBE and UNSUBSCRIBE requests are issued under the lock (Paho only queues them), so they reach
+    // the broker in the same order as the subscriptions map changes. Otherwise an unsubscribe racing a new
+    // subscribe of the same topic, e.g. back-to-back tracked commands, could leave the topic unsubscribed.
+    synchronized LetPotSubscription subscribe(String deviceId, LetPotDeviceStatusListener listener) {
+        if (closed) {
+            return null;
+        }
+        lastUsedNanos = System.nanoTime();
+        DeviceSubscription subscription = subscriptions.get(deviceId);
+        if (subscription == null) {
+            subscription = new DeviceSubscription();
+            subscriptions.put(deviceId, subscription);
+            if (mqttClient != null && mqttClient.isConnected()) {
+                subscribeTopic(mqttClient, deviceId);
+            } else {
+                // The topic is subscribed together with the others once the connection is up.
+                ensureConnected();
+            }
+        }
+        subscription.listeners.add(listener);
+        return () -> unsubscribe(deviceId, listener);
+    }
+
+    private synchronized void unsubscribe(String deviceId, LetPotDeviceStatusListener listener) {
+        DeviceSubscription subscription = subscriptions.get(deviceId);
+        if (subscription == null || !subscription.listeners.remove(listener) || !subscription.listeners.isEmpty()) {
+            return;
+        }
+        subscriptions.remove(deviceId);
+        lastUsedNanos = System.nanoTime();
+        MqttAsyncClient client = mqttClient;
+        if (client != null && client.isConnected()) {
+            try {
+                client.unsubscribe(deviceId + STATUS_TOPIC_SUFFIX);
+            } catch (MqttException e) {
+                log.warn("Failed to unsubscribe from status of device {}: {}", deviceId, e.getMessage());
+            }
+        }
+    }
+
+    private void subscribeTopic(MqttAsyncClient client, String deviceId) {
+        try {
+            client.subscribe(deviceId + STATUS_TOPIC_SUFFIX, 0);
+            log.info("Subscribed to status of device {}", deviceId);
+        } catch (MqttException e) {
+            log.error("Failed to subscribe to status of device {}", deviceId, e);
+        }
+    }
+
+    // Runs on Paho's callback thread, which is the only thread touching each subscription's reassembler.
+    private void handleMessage(String topic, MqttMessage message) {
+        if (!topic.endsWith(STATUS_TOPIC_SUFFIX)) {
+            return;
+        }
+        String deviceId = topic.substring(0, topic.length() - STATUS_TOPIC_SUFFIX.length());
+        DeviceSubscription subscription = subscriptions.get(deviceId);
+        if (subscription == null) {
+            return;
+        }
+        byte[] payload = message.getPayload();
+        LetPotPacketReassembler reassembler = subscription.reassembler;
+        if (!reassembler.accept(payload, 0, payload.length)) {
+            return;
+        }
+        if (!LetPotStatusDecoder.isStatus(reassembler.message(), reassembler.length())) {
+            return;
+        }
+        byte[] report = reassembler.message();
+        if (history != null) {
+            // Straight from the report's bytes, so unchanged reports still cost no allocation.
+            history.recordStatus(deviceId, System.currentTimeMillis(), LetPotStatusDecoder.pumpMode(report),
+                    LetPotStatusDecoder.isPumpCycleOn(report), LetPotStatusDecoder.pumpDurationSeconds(report),
+                    LetPotStatusDecoder.pumpCycleOnSeconds(report), LetPotStatusDecoder.pumpCycleOffSeconds(report));
+        }
+        LetPotDeviceStatus status = null;
+        TrackedCommand echoed = takeAwaitingEcho(deviceId, reassembler.messageId());
+        if (echoed != null) {
+            long now = System.nanoTime();
+            long brokerAckNanos = echoed.brokerAckNanos;
+            // An echo ahead of the broker's ack implies the ack; the device latency is then unknown.
+            long brokerLatencyNanos = brokerAckNanos != 0 ? echoed.brokerLatencyNanos : now - echoed.submitNanos;
+            long deviceLatencyNanos = brokerAckNanos != 0 ? now - brokerAckNanos : 0;
+            byte[] command = echoed.pending.command;
+            status = LetPotStatusDecoder.decode(deviceId, reassembler.messageId(), reassembler.message(), reassembler.length());
+            if (brokerAckNanos != 0) {
+                latencyStats.record(deviceId, echoed.commandType, brokerLatencyNanos, deviceLatencyNanos);
+            } else {
+                // A zero would drag the device percentiles down; only the broker stage is known.
+                latencyStats.recordBrokerOnly(deviceId, echoed.commandType, brokerLatencyNanos);
+            }
+            echoed.future.complete(new LetPotCommandAck(deviceId, echoed.commandType, echoed.pending.lastMessageId,
+                    LetPotCommandStatus.SENT, brokerLatencyNanos, deviceLatencyNanos, status,
+                    LetPotPacketFramer.packetCount(command.length), LetPotPacketFramer.encodedMessageLength(command.length)));
+        }
+        if (LetPotStatusDecoder.sameState(subscription.lastStatus, reassembler.message(), reassembler.length())) {
+            return;
+        }
+        if (status == null) {
+            status = LetPotStatusDecoder.decode(deviceId, reassembler.messageId(), reassembler.message(), reassembler.length());
+        }
+        subscription.lastStatus = status;
+        for (LetPotDeviceStatusListener listener : subscription.listeners) {
+            try {
+                listener.onStatus(status);
+            } catch (RuntimeException e) {
+                log.error("Device status listener failed for device {}", deviceId, e);
+            }
+        }
+    }
+
+    // Queued for the history's writer thread, so a full disk or segment rollover never holds up commands.
+    private void recordCommand(String deviceId, String commandType, LetPotCommandStatus status, long submitNanos) {
+        history.recordCommand(deviceId, System.currentTimeMillis(), commandType, status,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitNanos));
+    }
+
+    // Untracked commands arrive as bytes; raw payloads that are not ISE commands are recorded as "raw".
+    private static String commandType(byte[] command) {
+        try {
+            return LetPotCommandCodec.decode(command, 0, command.length).getCommandType();
+        } catch (IllegalArgumentException e) {
+            return "raw";
+        }
+    }
+
+    // Subscriptions and journaled commands both need the connection back without waiting for the next command.
+    private boolean needsBackgroundReconnect() {
+        return !subscriptions.isEmpty() || (journal != null && journal.hasUnacked(userId));
+    }
+
+    private void reconnectInBackground() {
+        synchronized (this) {
+            if (closed || !needsBackgroundReconnect()) {
+                return;
+            }
+        }
+        // A failed connect schedules the next attempt itself.
+        ensureConnected();
+    }
+
+    private void scheduleBackgroundReconnect() {
+        if (needsBackgroundReconnect()) {
+            LetPotExecutors.sharedScheduler().schedule(this::reconnectInBackground, RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    void close() {
+        List<PendingCommand> abandoned = new ArrayList<>();
+        MqttAsyncClient client;
+        synchronized (this) {
+            // A retired connection is already closed to new commands but still has its client to disconnect.
+            if (closed && mqttClient == null) {
+                return;
+            }
+            closed = true;
+            for (DeviceQueue queue : deviceQueues.values()) {
+                abandoned.addAll(queue.pending);
+                queue.pending.clear();
+            }
+            deviceQueues.clear();
+            subscriptions.clear();
+            awaitingEcho.clear();
+            readyDevices.clear();
+            activeJournalSeqs.clear();
+            queuedCommands = 0;
+            client = mqttClient;
+            mqttClient = null;
+        }
+        // Journaled commands stay in the journal and are replayed by the user's next connection.
+        for (PendingCommand pending : abandoned) {
+            pending.future.completeExceptionally(new LetPotConnectionException("MQTT connection for user " + userId + " was closed"));
+        }
+        if (client == null) {
+            return;
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion();
+            }
+            client.close();
+        } catch (MqttException e) {
+            log.error("Error closing MQTT connection for user {}.", userId, e);
+        }
+        log.info("Closed LetPot MQTT connection for user {}", userId);
+    }
+
+    private List<PendingCommand> takeStartableLocked() {
+        if (!canPublishLocked()) {
+            return null;
+        }
+        List<PendingCommand> toStart = null;
+        while (!readyDevices.isEmpty()) {
+            DeviceQueue queue = readyDevices.peek();
+            int window = packetWindow(queue.pending.peek());
+            if (inFlightPackets + window > config.getMaxInflight()) {
+                break;
+            }
+            readyDevices.poll();
+            queue.ready = false;
+            PendingCommand pending = queue.pending.poll();
+            queuedCommands--;
+            queue.busy = true;
+            inFlightCommands++;
+            inFlightPackets += window;
+            if (toStart == null) {
+                toStart = new ArrayList<>();
+            }
+            toStart.add(pending);
+        }
+        return toStart;
+    }
+
+    private boolean canPublishLocked() {
+        return publishable && mqttClient != null && mqttClient.isConnected();
+    }
+
+    private boolean needsConnectLocked() {
+        return queuedCommands > 0 && !closed && !canPublishLocked();
+    }
+
+    // Commands leave their queues only once connected; queued ones bring the connection back, or fail with it.
+    private void startOrConnect(List<PendingCommand> toStart, boolean connect) {
+        start(toStart);
+        if (connect) {
+            ensureConnected().whenComplete((client, error) -> {
+                if (error != null) {
+                    failQueued(error);
+                }
+            });
+        }
+    }
+
+    // Journaled commands stay in the journal and are replayed by the next connect.
+    private void failQueued(Throwable error) {
+        List<PendingCommand> failed = new ArrayList<>();
+        synchronized (this) {
+            if (canPublishLocked()) {
+                return;
+            }
+            Iterator<DeviceQueue> it = deviceQueues.values().iterator();
+            while (it.hasNext()) {
+                DeviceQueue queue = it.next();
+                for (PendingCommand pending : queue.pending) {
+                    if (pending.journalSeq >= 0) {
+                        activeJournalSeqs.remove(pending.journalSeq);
+                    }
+                    failed.add(pending);
+                }
+                queue.pending.clear();
+                queue.ready = false;
+                if (!queue.busy) {
+                    it.remove();
+                }
+            }
+            readyDevices.clear();
+            queuedCommands = 0;
+        }
+        for (PendingCommand pending : failed) {
+            pending.future.completeExceptionally(error);
+        }
+    }
+
+    private void start(List<PendingCommand> toStart) {
+        if (toStart == null) {
+            return;
+        }
+        for (PendingCommand pending : toStart) {
+            ensureConnected()
+                    .thenCompose(client -> whenJournalDurable(pending).thenCompose(ignored -> publishPackets(client, pending)))
+                    .whenComplete((ignored, error) -> {
+                        if (error == null) {
+                            metrics.recordPublish(System.nanoTime() - pending.publishStartNanos,
+                                    LetPotPacketFramer.packetCount(pending.command.length),
+                                    LetPotPacketFramer.encodedMessageLength(pending.command.length));
+                        } else {
+                            metrics.recordPublishFailure();
+                        }
+                        complete(pending, error);
+                    });
+        }
+    }
+
+    private CompletableFuture<Void> whenJournalDurable(PendingCommand pending) {
+        if (pending.journalSeq < 0 || !config.isJournalSyncBeforePublish()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return journal.whenDurable();
+    }
+
+    private void complete(PendingCommand pending, Throwable error) {
+        if (pending.journalSeq >= 0 && error == null) {
+            journal.markAcked(pending.journalSeq, pending.lastMessageId);
+        }
+        List<PendingCommand> toStart;
+        boolean connect;
+        synchronized (this) {
+            if (pending.journalSeq >= 0) {
+                activeJournalSeqs.remove(pending.journalSeq);
+            }
+            inFlightCommands--;
+            inFlightPackets -= packetWindow(pending);
+            lastUsedNanos = System.nanoTime();
+            DeviceQueue queue = deviceQueues.get(pending.deviceId);
+            if (queue != null) {
+                queue.busy = false;
+                if (!queue.pending.isEmpty()) {
+                    queue.ready = true;
+                    readyDevices.add(queue);
+                } else {
+                    deviceQueues.remove(pending.deviceId);
+                }
+            }
+            toStart = takeStartableLocked();
+            connect = needsConnectLocked();
+        }
+        if (error == null) {
+            pending.future.complete(LetPotCommandStatus.SENT);
+        } else {
+            pending.future.completeExceptionally(error);
+        }
+        startOrConnect(toStart, connect);
+    }
+
+    // A message sends all its packets without waiting for acks in between, up to the whole window for
+    // messages with more packets than maxInflight.
+    private int packetWindow(PendingCommand pending) {
+        return Math.min(LetPotPacketFramer.packetCount(pending.command.length), config.getMaxInflight());
+    }
+
+    // Publishes the message's packets as one burst. Message ids are taken as one consecutive block so
+    // packets of concurrent messages do not interleave ids, and every ack lets one more packet out.
+    private CompletableFuture<Void> publishPackets(MqttAsyncClient client, PendingCommand pending) {
+        int numPackets = LetPotPacketFramer.packetCount(pending.command.length);
+        int firstMessageId;
+        synchronized (this) {
+            firstMessageId = messageId;
+            messageId = (messageId + numPackets) & 0xFF;
+        }
+        pending.lastMessageId = (firstMessageId + numPackets - 1) & 0xFF;
+        pending.publishStartNanos = System.nanoTime();
+        PacketBurst burst = new PacketBurst(client, pending, numPackets, firstMessageId);
+        burst.send(packetWindow(pending));
+        return burst.acked;
+    }
+
+    private final class PacketBurst {
+        private final MqttAsyncClient client;
+        private final PendingCommand pending;
+        private final String topic;
+        private final int numPackets;
+        private final int firstMessageId;
+        private final CompletableFuture<Void> acked = new CompletableFuture<>();
+        // Guarded by this burst; sending under the lock keeps packets in order when an ack races the first burst.
+        private int nextPacket;
+        private int ackedPackets;
+
+        PacketBurst(MqttAsyncClient client, PendingCommand pending, int numPackets, int firstMessageId) {
+            this.client = client;
+            this.pending = pending;
+            this.topic = pending.deviceId + "/cmd";
+            this.numPackets = numPackets;
+            this.firstMessageId = firstMessageId;
+        }
+
+        synchronized void send(int packets) {
+            for (int n = 0; n < packets && nextPacket < numPackets && !acked.isDone(); n++) {
+                publish(nextPacket++);
+            }
+        }
+
+        private void publish(int packetIndex) {
+            byte[] command = pending.command;
+            byte[] packet = bufferPool.borrow(LetPotPacketFramer.encodedPacketLength(command.length, packetIndex));
+            LetPotPacketFramer.encodePacket(command, command.length, packetIndex, (firstMessageId + packetIndex) & 0xFF, packet, 0);
+            MqttMessage message = new MqttMessage(packet);
+            message.setQos(1);
+            try {
+                client.publish(topic, message, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        if (log.isInfoEnabled()) {
+                            log.info("Published message to topic {}: {}", topic, new String(packet, StandardCharsets.US_ASCII));
+                        }
+                        bufferPool.release(packet);
+                        onAck();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable exception) {
+                        acked.completeExceptionally(exception);
+                    }
+                });
+            } catch (MqttException e) {
+                acked.completeExceptionally(e);
+            }
+        }
+
+        private void onAck() {
+            boolean done;
+            synchronized (this) {
+                done = ++ackedPackets == numPackets;
+            }
+            if (done) {
+                acked.complete(null);
+            } else {
+                send(1);
+            }
+        }
+    }
+
+    // Single-flight: concurrent commands for a disconnected user share one broker handshake.
+    private synchronized CompletableFuture<MqttAsyncClient> ensureConnected() {
+        if (closed) {
+            return CompletableFuture.failedFuture(new LetPotConnectionException("MQTT connection for user " + userId + " was closed"));
+        }
+        if (mqttClient != null && mqttClient.isConnected()) {
+            return CompletableFuture.completedFuture(mqttClient);
+        }
+        if (connectFuture != null && !connectFuture.isDone()) {
+            MqttAsyncClient client = mqttClient;
+            return connectFuture.thenApply(ignored -> client);
+        }
+
+        try {
+            if (mqttClient == null) {
+                // The counter keeps ids unique when the pool opens several connections within one millisecond;
+                // a duplicate id would make the broker drop the other session.
+                String clientId = "LetPot_Java_" + System.currentTimeMillis() + "_" + CLIENT_COUNTER.incrementAndGet();
+                mqttClient = new MqttAsyncClient(config.getBrokerUrl(), clientId, new MemoryPersistence());
+                mqttClient.setCallback(new MqttCallback() {
+                    @Override
+                    public void connectionLost(Throwable cause) {
+                        log.warn("Lost LetPot MQTT connection for user {}: {}", userId, cause.getMessage());
+                        synchronized (LetPotMqttConnection.this) {
+                            publishable = false;
+                        }
+                        scheduleBackgroundReconnect();
+                    }
+
+                    @Override
+                    public void messageArrived(String topic, MqttMessage message) {
+                        handleMessage(topic, message);
+                    }
+
+                    @Override
+                    public void deliveryComplete(IMqttDeliveryToken token) {
+                    }
+                });
+            }
+
+            String username = email.toLowerCase() + "__letpot_v3";
+            String password = DigestUtils.sha256Hex(userId + "|" + DigestUtils.md5Hex(username));
+
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setUserName(username);
+            connOpts.setPassword(password.toCharArray());
+            connOpts.setCleanSession(true);
+            connOpts.setMaxInflight(config.getMaxInflight());
+            // Reconnects happen lazily on the next command, so there is never a Paho retry loop to race with.
+            connOpts.setAutomaticReconnect(false);
+
+            log.info("Connecting to LetPot MQTT broker for user {}", userId);
+            boolean reconnect = everConnected;
+            long connectStart = System.nanoTime();
+            CompletableFuture<Void> connected = new CompletableFuture<>();
+            connectFuture = connected;
+            publishable = false;
+            mqttClient.connect(connOpts, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    log.info("Connected to LetPot MQTT broker.");
+                    metrics.recordMqttConnect(reconnect, true, System.nanoTime() - connectStart);
+                    synchronized (LetPotMqttConnection.this) {
+                        everConnected = true;
+                        // Clean sessions drop subscriptions on every connect, so restore them.
+                        MqttAsyncClient client = (MqttAsyncClient) token.getClient();
+                        for (String deviceId : subscriptions.keySet()) {
+                            subscribeTopic(client, deviceId);
+                        }
+                    }
+                    // Commands that failed with the previous connection, or were left over from the last run. They
+                    // are queued ahead of newer ones before anything is published, so they go out in order.
+                    replayJournal();
+                    List<PendingCommand> toStart;
+                    synchronized (LetPotMqttConnection.this) {
+                        publishable = true;
+                        toStart = takeStartableLocked();
+                    }
+                    connected.complete(null);
+                    start(toStart);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    log.error("Failed to connect to LetPot MQTT broker for user {}", userId, exception);
+                    metrics.recordMqttConnect(reconnect, false, System.nanoTime() - connectStart);
+                    connected.completeExceptionally(exception);
+                    // Nothing else would retry for journaled commands while the broker stays down.
+                    scheduleBackgroundReconnect();
+                }
+            });
+            MqttAsyncClient client = mqttClient;
+            return connected.thenApply(ignored -> client);
+        } catch (MqttException e) {
+            scheduleBackgroundReconnect();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static class DeviceQueue {
+        private final ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+        private boolean busy;
+        private boolean ready;
+    }
+
+    private static class TrackedCommand {
+        private final String deviceId;
+        private final String commandType;
+        private final PendingCommand pending;
+        private final long submitNanos = System.nanoTime();
+        private final CompletableFuture<LetPotCommandAck> future = new CompletableFuture<>();
+        private volatile long brokerLatencyNanos;
+        private volatile long brokerAckNanos;
+        // Guarded by the connection monitor.
+        private boolean finished;
+
+        TrackedCommand(String deviceId, String commandType, PendingCommand pending) {
+            this.deviceId = deviceId;
+            this.commandType = commandType;
+            this.pending = pending;
+        }
+    }
+
+    private static class DeviceSubscription {
+        private final List<LetPotDeviceStatusListener> listeners = new CopyOnWriteArrayList<>();
+        private final LetPotPacketReassembler reassembler = new LetPotPacketReassembler();
+        private LetPotDeviceStatus lastStatus;
+    }
+
+    private static class PendingCommand {
+        private final String deviceId;
+        private final byte[] command;
+        private final String coalesceKey;
+        private final CompletableFuture<LetPotCommandStatus> future = new CompletableFuture<>();
+        private volatile int lastMessageId = -1;
+        private volatile long publishStartNanos;
+        private long journalSeq = -1;
+        private boolean replay;
+
+        PendingCommand(String deviceId, byte[] command, String coalesceKey) {
+            this.deviceId = deviceId;
+            this.command = command;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+}
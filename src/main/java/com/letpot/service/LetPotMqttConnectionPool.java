@@ -0,0 +1,182 @@
+package com.letpot.service;
+
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.util.LetPotCommandJournal;
+import com.letpot.util.LetPotDeviceHistory;
+import com.letpot.util.LetPotPacketBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+class LetPotMqttConnectionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(LetPotMqttConnectionPool.class);
+
+    private final LetPotMqttConfig config;
+    private final LetPotMetrics metrics;
+    // Access-ordered, so iteration starts at the least recently used user.
+    private final LinkedHashMap<String, LetPotMqttConnection> connections = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService sweeper;
+    private final LetPotPacketBufferPool bufferPool = new LetPotPacketBufferPool(64);
+    private final LetPotCommandLatencyStats latencyStats = new LetPotCommandLatencyStats();
+    private final LetPotCommandJournal journal;
+    private final LetPotDeviceHistory history;
+
+    LetPotMqttConnectionPool(LetPotMqttConfig config, LetPotMetrics metrics) {
+        if (config.getMaxConnections() < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.config = config;
+        this.metrics = metrics;
+        this.journal = config.getJournalFile() == null ? null : new LetPotCommandJournal(config.getJournalFile(),
+                config.getJournalCapacityBytes(), config.getJournalGroupCommitInterval());
+        this.history = config.getHistory() == null ? null : new LetPotDeviceHistory(config.getHistory());
+        metrics.registerGauge("mqtt.connections", this::size);
+        metrics.registerGauge("mqtt.queued_commands", () -> sum(LetPotMqttConnection::getQueuedCommandCount));
+        metrics.registerGauge("mqtt.inflight_commands", () -> sum(LetPotMqttConnection::getInFlightCommandCount));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "letpot-mqtt-idle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = config.getIdleSweepInterval().toMillis();
+        sweeper.scheduleWithFixedDelay(this::evictIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        if (journal != null) {
+            metrics.registerGauge("mqtt.journaled_commands", journal::size);
+            replayJournal();
+        }
+        if (history != null) {
+            metrics.registerGauge("history.events", history::getEventCount);
+            metrics.registerGauge("history.bytes", history::getSizeBytes);
+            metrics.registerGauge("history.dropped", history::getDroppedEventCount);
+        }
+    }
+
+    // Reconnects every user with commands left unacknowledged by the previous run, which replays them.
+    private void replayJournal() {
+        journal.usersWithUnacked().forEach((userId, email) -> acquire(email, userId).replayJournal());
+    }
+
+    // Connections are created unconnected; the broker handshake happens on first publish, outside the pool lock.
+    LetPotMqttConnection acquire(String email, String userId) {
+        LetPotMqttConnection evicted = null;
+        LetPotMqttConnection connection;
+        synchronized (connections) {
+            connection = connections.get(userId);
+            if (connection == null) {
+                if (connections.size() >= config.getMaxConnections()) {
+                    evicted = removeEvictionCandidate();
+                    if (evicted == null) {
+                        log.warn("MQTT connection pool full ({}) with no idle connection, opening one more for user {}",
+                                config.getMaxConnections(), userId);
+                    }
+                }
+                connection = new LetPotMqttConnection(email, userId, config, bufferPool, latencyStats, metrics, journal,
+                        history);
+                connections.put(userId, connection);
+            }
+        }
+        if (evicted != null) {
+            log.info("MQTT connection pool full ({}), evicting least recently used user {}",
+                    config.getMaxConnections(), evicted.getUserId());
+            evicted.close();
+        }
+        return connection;
+    }
+
+    // Least recently used connection with no queued or in-flight commands and no subscriptions, or null. A busy
+    // connection is never evicted: the pool goes over maxConnections instead and the sweeper trims it back.
+    private LetPotMqttConnection removeEvictionCandidate() {
+        Iterator<LetPotMqttConnection> it = connections.values().iterator();
+        while (it.hasNext()) {
+            LetPotMqttConnection connection = it.next();
+            if (connection.retireIfIdle()) {
+                it.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    LetPotCommandLatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    private long sum(ToIntFunction<LetPotMqttConnection> value) {
+        List<LetPotMqttConnection> all;
+        synchronized (connections) {
+            all = new ArrayList<>(connections.values());
+        }
+        long total = 0;
+        for (LetPotMqttConnection connection : all) {
+            total += value.applyAsInt(connection);
+        }
+        return total;
+    }
+
+    int size() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    void evictIdle() {
+        long cutoff = System.nanoTime() - config.getIdleTimeout().toNanos();
+        List<LetPotMqttConnection> idle = new ArrayList<>();
+        synchronized (connections) {
+            Iterator<Map.Entry<String, LetPotMqttConnection>> it = connections.entrySet().iterator();
+            while (it.hasNext()) {
+                LetPotMqttConnection connection = it.next().getValue();
+                if (connection.getLastUsedNanos() - cutoff < 0 && connection.retireIfIdle()) {
+                    idle.add(connection);
+                    it.remove();
+                }
+            }
+            // Connections opened over the limit while every other one was busy.
+            while (connections.size() > config.getMaxConnections()) {
+                LetPotMqttConnection excess = removeEvictionCandidate();
+                if (excess == null) {
+                    break;
+                }
+                idle.add(excess);
+            }
+        }
+        for (LetPotMqttConnection connection : idle) {
+            log.info("Closing idle MQTT connection for user {}", connection.getUserId());
+            connection.close();
+        }
+    }
+
+    void close() {
+        sweeper.shutdownNow();
+        List<LetPotMqttConnection> all;
+        synchronized (connections) {
+            all = new ArrayList<>(connections.values());
+            connections.clear();
+        }
+        for (LetPotMqttConnection connection : all) {
+            connection.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    // Null when the history is off.
+    LetPotDeviceHistory getHistory() {
+        return history;
+    }
+}
@@ -1,119 +1,209 @@
 package com.letpot.service;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import com.letpot.exception.LetPotRejectedException;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotCommandAck;
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotMqttConfig;
+import com.letpot.util.LetPotCircuitBreaker;
+import com.letpot.util.LetPotDeviceHistory;
+import com.letpot.util.LetPotExecutors;
+import com.letpot.util.LetPotResilience;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class LetPotMqttService {
 
-    private static final String BROKER_HOST = "broker.letpot.net";
-    private static final int BROKER_PORT = 443;
-    private static final String WEBSOCKET_PATH = "/mqttwss";
-    private static final Logger log = LoggerFactory.getLogger(LetPotMqttService.class);
-    private static final int MTU = 128;
-
-    private MqttClient mqttClient;
-    private int messageId = 0;
-    private String currentUserEmail;
-    private String currentUserId;
-
-    private synchronized void ensureConnected(String email, String userId) throws MqttException {
-        // If the client is null, or if the user has changed, we need to create a new client and connect.
-        if (mqttClient == null || !mqttClient.isConnected() || !userId.equals(currentUserId)) {
-            
-            // If there's an old client, disconnect it first.
-            if (mqttClient != null && mqttClient.isConnected()) {
-                try {
-                    mqttClient.disconnect();
-                } catch (MqttException e) {
-                    log.error("Error disconnecting previous MQTT client.", e);
+    private final LetPotMqttConnectionPool connectionPool;
+    // Null unless the config enables it.
+    private final LetPotResilience resilience;
+
+    public LetPotMqttService() {
+        this(new LetPotMqttConfig());
+    }
+
+    public LetPotMqttService(LetPotMqttConfig config) {
+        this(config, LetPotMetrics.noop());
+    }
+
+    public LetPotMqttService(LetPotMqttConfig config, LetPotMetrics metrics) {
+        this.connectionPool = new LetPotMqttConnectionPool(config, metrics);
+        this.resilience = config.getResilience() == null ? null : new LetPotResilience(config.getResilience(), "MQTT broker");
+        if (resilience != null) {
+            metrics.registerGauge("mqtt.circuit_open",
+                    () -> resilience.getCircuitState() == LetPotCircuitBreaker.State.CLOSED ? 0 : 1);
+        }
+    }
+
+    // Completes once every packet of the command has been acked by the broker. Commands for the same
+    // device are published in submission order; different devices and users proceed in parallel.
+    public CompletableFuture<LetPotCommandStatus> publishCommandAsync(String deviceId, String email, String userId, byte[] command) {
+        return publishCommandAsync(deviceId, email, userId, command, null);
+    }
+
+    // Like publishCommandAsync, but a still-queued command for the device with the same coalesce key is
+    // replaced by this one and completes with COALESCED. The command bytes must not be modified afterwards.
+    public CompletableFuture<LetPotCommandStatus> publishCommandAsync(String deviceId, String email, String userId,
+                                                                     byte[] command, String coalesceKey) {
+        if (resilience == null) {
+            return submit(deviceId, email, userId, command, coalesceKey);
+        }
+        // Commands with a coalesce key carry the full device state, so a repeat is harmless.
+        int maxAttempts = coalesceKey != null ? resilience.getConfig().getMaxAttempts() : 1;
+        return guarded(userId, () -> submit(deviceId, email, userId, command, coalesceKey), 1, maxAttempts, true);
+    }
+
+    // Publishes the same command to each device, like publishCommandAsync per device, but the whole batch
+    // takes one permit from the account's rate limit; each publish still passes the circuit breaker.
+    // Futures are returned in the order of deviceIds.
+    public Map<String, CompletableFuture<LetPotCommandStatus>> publishBulkCommandAsync(Collection<String> deviceIds,
+                                                                                      String email, String userId,
+                                                                                      byte[] command, String coalesceKey) {
+        Map<String, CompletableFuture<LetPotCommandStatus>> futures = new LinkedHashMap<>();
+        if (resilience != null) {
+            try {
+                resilience.acquireRate(userId);
+            } catch (LetPotRejectedException e) {
+                for (String deviceId : deviceIds) {
+                    futures.put(deviceId, CompletableFuture.failedFuture(e));
                 }
+                return futures;
             }
-
-            this.currentUserEmail = email;
-            this.currentUserId = userId;
-            this.messageId = 0;
-
-            String username = currentUserEmail.toLowerCase() + "__letpot_v3";
-            String password = DigestUtils.sha256Hex(currentUserId + "|" + DigestUtils.md5Hex(username));
-            String brokerUrl = "wss://" + BROKER_HOST + ":" + BROKER_PORT + WEBSOCKET_PATH;
-            String clientId = "LetPot_Java_" + System.currentTimeMillis();
-
-            mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
-            
-            MqttConnectOptions connOpts = new MqttConnectOptions();
-            connOpts.setUserName(username);
-            connOpts.setPassword(password.toCharArray());
-            connOpts.setCleanSession(true);
-            connOpts.setAutomaticReconnect(true); // Let Paho handle reconnects
-
-            log.info("Connecting to LetPot MQTT broker for user {}", currentUserId);
-            mqttClient.connect(connOpts);
-            log.info("Connected to LetPot MQTT broker.");
         }
+        int maxAttempts = resilience != null && coalesceKey != null ? resilience.getConfig().getMaxAttempts() : 1;
+        for (String deviceId : deviceIds) {
+            CompletableFuture<LetPotCommandStatus> future;
+            try {
+                future = resilience == null
+                        ? submit(deviceId, email, userId, command, coalesceKey)
+                        : guarded(userId, () -> submit(deviceId, email, userId, command, coalesceKey), 1, maxAttempts, false);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            futures.put(deviceId, future);
+        }
+        return futures;
+    }
+
+    private CompletableFuture<LetPotCommandStatus> submit(String deviceId, String email, String userId,
+                                                          byte[] command, String coalesceKey) {
+        CompletableFuture<LetPotCommandStatus> future;
+        do {
+            // Null means the connection was evicted between acquire and submit; take a fresh one.
+            future = connectionPool.acquire(email, userId).submit(deviceId, command, coalesceKey);
+        } while (future == null);
+        return future;
+    }
+
+    // Completes when the device echoes a status report for the command, with the broker and device
+    // latencies; these are also recorded in getLatencyStats() per device and command type.
+    public CompletableFuture<LetPotCommandAck> publishTrackedCommandAsync(String deviceId, String email, String userId,
+                                                                          byte[] command, String coalesceKey,
+                                                                          String commandType) {
+        Supplier<CompletableFuture<LetPotCommandAck>> submit = () -> {
+            CompletableFuture<LetPotCommandAck> future;
+            do {
+                future = connectionPool.acquire(email, userId).submitTracked(deviceId, command, coalesceKey, commandType);
+            } while (future == null);
+            return future;
+        };
+        // Not retried: the device may already be acting on a command whose echo is merely late.
+        return resilience == null ? submit.get() : guarded(userId, submit, 1, 1, true);
     }
 
-    private List<String> generateMessagePackets(byte[] message) {
-        int maintype = 1;
-        int subtype = 19;
-        int length = message.length;
-        int maxPacketSize = MTU - 6;
-        int numPackets = (length + maxPacketSize - 1) / maxPacketSize;
-
-        List<String> packets = new ArrayList<>();
-        for (int n = 0; n < numPackets; n++) {
-            int start = n * maxPacketSize;
-            int end = Math.min(start + maxPacketSize, length);
-            byte[] payload = new byte[end - start];
-            System.arraycopy(message, start, payload, 0, payload.length);
-
-            List<Integer> packet = new ArrayList<>();
-            if (n < numPackets - 1) {
-                packet.add((subtype << 2) | maintype);
-                packet.add(16);
-                packet.add(messageId);
-                packet.add(payload.length + 4);
-                packet.add(length % 256);
-                packet.add(length / 256);
-            } else {
-                packet.add((subtype << 2) | maintype);
-                packet.add(0);
-                packet.add(messageId);
-                packet.add(payload.length);
+    // Runs the call under the account's rate limit and the broker's circuit breaker, retrying broker
+    // failures with jittered backoff on the shared scheduler rather than a blocked thread. Calls of a bulk
+    // batch skip the rate limit, which the batch has already been charged for.
+    private <T> CompletableFuture<T> guarded(String userId, Supplier<CompletableFuture<T>> call, int attempt, int maxAttempts,
+                                             boolean rateLimited) {
+        long permit;
+        try {
+            permit = rateLimited ? resilience.acquire(userId) : resilience.acquireCircuit();
+        } catch (LetPotRejectedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            // Thrown before reaching the broker, so it does not count against it; the permit (and a half-open
+            // probe slot) must still be released.
+            resilience.onSuccess(permit);
+            throw e;
+        }
+        return future.handle((result, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause == null) {
+                resilience.onSuccess(permit);
+                return CompletableFuture.completedFuture(result);
             }
-            for (byte b : payload) {
-                packet.add(b & 0xFF);
+            // Only the broker's own errors count against it, not full queues, journal errors or echo timeouts.
+            if (!(cause instanceof MqttException)) {
+                resilience.onSuccess(permit);
+                return CompletableFuture.<T>failedFuture(cause);
             }
+            resilience.onFailure(permit);
+            if (attempt >= maxAttempts) {
+                return CompletableFuture.<T>failedFuture(cause);
+            }
+            long delay = resilience.backoffNanos(attempt, 0);
+            return CompletableFuture.runAsync(() -> { },
+                            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, LetPotExecutors.sharedScheduler()))
+                    .thenCompose(ignored -> guarded(userId, call, attempt + 1, maxAttempts, rateLimited));
+        }).thenCompose(next -> next);
+    }
 
-            StringBuilder hexString = new StringBuilder();
-            for (Integer p : packet) {
-                hexString.append(String.format("%02x", p));
+    // Null unless the config enables resilience.
+    public LetPotResilience getResilience() {
+        return resilience;
+    }
+
+    // Null unless the config enables the device history.
+    public LetPotDeviceHistory getHistory() {
+        return connectionPool.getHistory();
+    }
+
+    public LetPotCommandLatencyStats getLatencyStats() {
+        return connectionPool.getLatencyStats();
+    }
+
+    // Streams decoded status reports from the device's status topic to the listener, skipping reports
+    // identical to the previous one. Close the returned subscription to stop.
+    public LetPotSubscription subscribeDeviceStatus(String deviceId, String email, String userId,
+                                                    LetPotDeviceStatusListener listener) {
+        LetPotSubscription subscription;
+        do {
+            subscription = connectionPool.acquire(email, userId).subscribe(deviceId, listener);
+        } while (subscription == null);
+        return subscription;
+    }
+
+    public void publishCommand(String deviceId, String email, String userId, byte[] command) throws MqttException {
+        try {
+            publishCommandAsync(deviceId, email, userId, command).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MqttException) {
+                throw (MqttException) e.getCause();
             }
-            packets.add(hexString.toString());
-            messageId++;
-        }
-        return packets;
-    }
-
-    public synchronized void publishCommand(String deviceId, String email, String userId, byte[] command) throws MqttException {
-        ensureConnected(email, userId);
-        
-        List<String> packets = generateMessagePackets(command);
-        String topic = deviceId + "/cmd";
-        
-        for(String packet : packets) {
-            MqttMessage message = new MqttMessage(packet.getBytes());
-            message.setQos(1);
-            mqttClient.publish(topic, message);
-            log.info("Published message to topic {}: {}", topic, packet);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
     }
-} 
\ No newline at end of file
+
+    public int getOpenConnectionCount() {
+        return connectionPool.size();
+    }
+
+    public void close() {
+        connectionPool.close();
+    }
+}
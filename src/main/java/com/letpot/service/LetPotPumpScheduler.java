@@ -0,0 +1,371 @@
+package com.letpot.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.model.LetPotPumpSchedule;
+import com.letpot.model.LetPotScheduleConfig;
+import com.letpot.util.LetPotExecutors;
+import com.letpot.util.LetPotHttpTransport;
+import com.letpot.util.LetPotLatencyHistogram;
+import com.letpot.util.LetPotTimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs watering programs: each schedule turns a device's pump on at its start time and off after its duration,
+ * optionally repeating. Pending actuations live in a hashed timer wheel driven by one thread, so adding,
+ * removing and firing stay O(1) with hundreds of thousands of schedules. Actuations that fall due in the same
+ * tick are grouped by command and sent as bulk commands.
+ */
+public class LetPotPumpScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(LetPotPumpScheduler.class);
+    private static final int MAX_PUMP_DURATION_SECONDS = 0xFFFF;
+
+    private final LetPotScheduleDispatcher dispatcher;
+    private final LetPotScheduleConfig config;
+    private final LetPotTimerWheel<Actuation> wheel;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Dispatch calls can block on a token refresh, and saving can take a while; neither may hold up the wheel.
+    private final ExecutorService ioExecutor = LetPotExecutors.newBlockingIoExecutor("letpot-schedule-io-");
+    private final Thread wheelThread;
+    private final LetPotLatencyHistogram jitter = new LetPotLatencyHistogram();
+    private final LongAdder dispatchedActuations = new LongAdder();
+    private final LongAdder failedActuations = new LongAdder();
+    private final AtomicBoolean saving = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile boolean dirty;
+    // Wheel thread only.
+    private final Map<LetPotPumpCommand, List<Actuation>> due = new HashMap<>();
+    private long lastSaveNanos;
+
+    public LetPotPumpScheduler(LetPotService service, LetPotScheduleConfig config) {
+        this(service::sendBulkCommandAsync, config);
+    }
+
+    public LetPotPumpScheduler(LetPotScheduleDispatcher dispatcher, LetPotScheduleConfig config) {
+        if (config.getMaxBatchSize() < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.dispatcher = dispatcher;
+        this.config = config;
+        this.wheel = new LetPotTimerWheel<>(config.getTickDuration().toNanos(), config.getWheelSize(), System.nanoTime());
+        this.wheelThread = new Thread(this::runWheel, "letpot-pump-scheduler");
+        wheelThread.setDaemon(true);
+        loadSchedules();
+    }
+
+    public void start() {
+        running = true;
+        lastSaveNanos = System.nanoTime();
+        wheelThread.start();
+    }
+
+    // Replaces any schedule with the same id. Runs whose start has already passed are skipped.
+    public void add(LetPotPumpSchedule schedule) {
+        validate(schedule);
+        schedule(schedule);
+        dirty = true;
+    }
+
+    // A run in progress is not cut short; the pump stops after the duration it was started with.
+    public boolean remove(String scheduleId) {
+        Entry entry = entries.remove(scheduleId);
+        if (entry == null) {
+            return false;
+        }
+        entry.cancel();
+        dirty = true;
+        return true;
+    }
+
+    public Optional<LetPotPumpSchedule> getSchedule(String scheduleId) {
+        Entry entry = entries.get(scheduleId);
+        return entry == null ? Optional.empty() : Optional.of(entry.schedule);
+    }
+
+    public List<LetPotPumpSchedule> getSchedules() {
+        List<LetPotPumpSchedule> schedules = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            schedules.add(entry.schedule);
+        }
+        return schedules;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // How late actuations were handed to the dispatcher relative to their scheduled time.
+    public LetPotLatencyHistogram getJitter() {
+        return jitter;
+    }
+
+    public long getDispatchedActuationCount() {
+        return dispatchedActuations.sum();
+    }
+
+    public long getFailedActuationCount() {
+        return failedActuations.sum();
+    }
+
+    // Stops firing and saves pending changes. Commands already handed to the dispatcher still complete.
+    public void close() {
+        running = false;
+        LockSupport.unpark(wheelThread);
+        try {
+            wheelThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dirty) {
+            saveSchedules();
+        }
+        ioExecutor.shutdown();
+    }
+
+    private void schedule(LetPotPumpSchedule schedule) {
+        Entry entry = new Entry(schedule);
+        Entry replaced = entries.put(schedule.getId(), entry);
+        if (replaced != null) {
+            replaced.cancel();
+        }
+        long nextRun = schedule.nextRunAtOrAfter(System.currentTimeMillis());
+        if (nextRun < 0) {
+            entries.remove(schedule.getId(), entry);
+            return;
+        }
+        scheduleActuation(entry, true, nextRun);
+    }
+
+    private void scheduleActuation(Entry entry, boolean on, long epochMillis) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(epochMillis - System.currentTimeMillis());
+        LetPotTimerWheel.Timeout<Actuation> timeout = wheel.schedule(new Actuation(entry, on, epochMillis), deadlineNanos);
+        if (on) {
+            entry.nextOn = timeout;
+        } else {
+            entry.pendingOff = timeout;
+        }
+        // remove() may have run between the caller's check and the assignment above.
+        if (entry.removed) {
+            timeout.cancel();
+        }
+    }
+
+    private void runWheel() {
+        while (running) {
+            wheel.advance(System.nanoTime(), this::collect);
+            flushDue();
+            saveIfDue();
+            long waitNanos = wheel.nextTickNanos() - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+        }
+    }
+
+    private void collect(LetPotTimerWheel.Timeout<Actuation> timeout) {
+        Actuation actuation = timeout.getTask();
+        Entry entry = actuation.entry;
+        if (entry.removed) {
+            return;
+        }
+        LetPotPumpSchedule schedule = entry.schedule;
+        actuation.deadlineNanos = timeout.getDeadlineNanos();
+        LetPotPumpCommand command = actuation.on ? LetPotPumpCommand.on(schedule.getDurationSeconds()) : LetPotPumpCommand.off();
+        due.computeIfAbsent(command, c -> new ArrayList<>()).add(actuation);
+
+        if (actuation.on) {
+            scheduleActuation(entry, false, actuation.epochMillis + schedule.getDurationSeconds() * 1000L);
+            if (schedule.isRepeating()) {
+                // From the clock, not the run that just fired: after a stall (suspend, long GC) the missed
+                // periods are skipped rather than fired one tick apart.
+                long after = Math.max(System.currentTimeMillis(), actuation.epochMillis + 1);
+                scheduleActuation(entry, true, schedule.nextRunAtOrAfter(after));
+            }
+        } else if (!schedule.isRepeating() && entries.remove(schedule.getId(), entry)) {
+            // A one-off schedule is done once its pump is off again.
+            dirty = true;
+        }
+    }
+
+    private void flushDue() {
+        if (due.isEmpty()) {
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        for (Map.Entry<LetPotPumpCommand, List<Actuation>> batch : due.entrySet()) {
+            List<Actuation> actuations = batch.getValue();
+            for (int from = 0; from < actuations.size(); from += config.getMaxBatchSize()) {
+                List<Actuation> chunk = actuations.subList(from, Math.min(actuations.size(), from + config.getMaxBatchSize()));
+                List<String> deviceIds = new ArrayList<>(chunk.size());
+                for (Actuation actuation : chunk) {
+                    jitter.record(nowNanos - actuation.deadlineNanos);
+                    deviceIds.add(actuation.entry.schedule.getDeviceId());
+                }
+                dispatch(deviceIds, batch.getKey());
+            }
+        }
+        due.clear();
+    }
+
+    private void dispatch(List<String> deviceIds, LetPotPumpCommand command) {
+        try {
+            ioExecutor.execute(() -> dispatchNow(deviceIds, command));
+        } catch (RejectedExecutionException e) {
+            // Never let a saturated executor take down the wheel thread.
+            failedActuations.add(deviceIds.size());
+            log.warn("Scheduled pump command {} to {} devices dropped: I/O executor saturated",
+                    command.isOn() ? "ON" : "OFF", deviceIds.size());
+        }
+    }
+
+    private void dispatchNow(List<String> deviceIds, LetPotPumpCommand command) {
+        try {
+            dispatcher.dispatch(deviceIds, command).whenComplete((report, e) -> {
+                if (e != null) {
+                    failedActuations.add(deviceIds.size());
+                    log.warn("Scheduled pump command {} to {} devices failed: {}",
+                            command.isOn() ? "ON" : "OFF", deviceIds.size(), e.getMessage());
+                    return;
+                }
+                long failed = report.count(LetPotCommandStatus.FAILED);
+                failedActuations.add(failed);
+                dispatchedActuations.add(deviceIds.size() - failed);
+            });
+        } catch (RuntimeException e) {
+            failedActuations.add(deviceIds.size());
+            log.warn("Scheduled pump command {} to {} devices failed: {}",
+                    command.isOn() ? "ON" : "OFF", deviceIds.size(), e.getMessage());
+        }
+    }
+
+    private void saveIfDue() {
+        if (!dirty || config.getPersistenceFile() == null
+                || System.nanoTime() - lastSaveNanos < config.getPersistInterval().toNanos()
+                || !saving.compareAndSet(false, true)) {
+            return;
+        }
+        lastSaveNanos = System.nanoTime();
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    saveSchedules();
+                } finally {
+                    saving.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Still dirty, so the next persist interval tries again.
+            saving.set(false);
+        }
+    }
+
+    private void saveSchedules() {
+        Path file = config.getPersistenceFile();
+        if (file == null) {
+            return;
+        }
+        dirty = false;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            LetPotHttpTransport.objectMapper().writeValue(tmp.toFile(), getSchedules());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            log.warn("Failed to save pump schedules to {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void loadSchedules() {
+        Path file = config.getPersistenceFile();
+        List<LetPotPumpSchedule> schedules;
+        try {
+            if (file == null || !Files.exists(file) || Files.size(file) == 0) {
+                return;
+            }
+            schedules = LetPotHttpTransport.objectMapper().readValue(file.toFile(),
+                    new TypeReference<List<LetPotPumpSchedule>>() { });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load pump schedules from " + file, e);
+        }
+        for (LetPotPumpSchedule schedule : schedules) {
+            schedule(schedule);
+        }
+        // A run that was in progress at shutdown is not resumed; the pump stops on its own after the
+        // duration sent with the ON command.
+        int expired = schedules.size() - entries.size();
+        dirty = expired > 0;
+        log.info("Loaded {} pump schedules from {} ({} one-off schedules already past)", entries.size(), file, expired);
+    }
+
+    private static void validate(LetPotPumpSchedule schedule) {
+        if (schedule.getId() == null || schedule.getDeviceId() == null) {
+            throw new IllegalArgumentException("Schedule id and device id are required");
+        }
+        if (schedule.getDurationSeconds() < 1 || schedule.getDurationSeconds() > MAX_PUMP_DURATION_SECONDS) {
+            throw new IllegalArgumentException("Pump duration must be between 1 and " + MAX_PUMP_DURATION_SECONDS + " seconds");
+        }
+        if (schedule.getRepeatEverySeconds() < 0
+                || (schedule.isRepeating() && schedule.getRepeatEverySeconds() <= schedule.getDurationSeconds())) {
+            throw new IllegalArgumentException("Repeat interval must be longer than the pump duration");
+        }
+    }
+
+    private static class Entry {
+        private final LetPotPumpSchedule schedule;
+        private volatile LetPotTimerWheel.Timeout<Actuation> nextOn;
+        private volatile LetPotTimerWheel.Timeout<Actuation> pendingOff;
+        private volatile boolean removed;
+
+        Entry(LetPotPumpSchedule schedule) {
+            this.schedule = schedule;
+        }
+
+        void cancel() {
+            removed = true;
+            LetPotTimerWheel.Timeout<Actuation> on = nextOn;
+            LetPotTimerWheel.Timeout<Actuation> off = pendingOff;
+            if (on != null) {
+                on.cancel();
+            }
+            if (off != null) {
+                off.cancel();
+            }
+        }
+    }
+
+    private static class Actuation {
+        private final Entry entry;
+        private final boolean on;
+        private final long epochMillis;
+        private long deadlineNanos;
+
+        Actuation(Entry entry, boolean on, long epochMillis) {
+            this.entry = entry;
+            this.on = on;
+            this.epochMillis = epochMillis;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.letpot.service;
+
+import com.letpot.model.LetPotBulkCommandReport;
+import com.letpot.model.LetPotPumpCommand;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+// Sends one batch of due actuations; LetPotService::sendBulkCommandAsync for a single account.
+@FunctionalInterface
+public interface LetPotScheduleDispatcher {
+    CompletableFuture<LetPotBulkCommandReport> dispatch(Collection<String> deviceIds, LetPotPumpCommand command);
+}
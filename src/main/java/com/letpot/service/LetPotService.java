@@ -1,83 +1,166 @@
 package com.letpot.service;
 
 import com.letpot.client.LetPotApiClient;
-import com.letpot.dto.LetPotAuthenticationResponseDto;
 import com.letpot.dto.LetPotDeviceDto;
 import com.letpot.dto.LetPotDeviceListResponseDto;
-import com.letpot.exception.LetPotAuthenticationException;
 import com.letpot.exception.LetPotConnectionException;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotBulkCommandReport;
+import com.letpot.model.LetPotCommandAck;
+import com.letpot.model.LetPotCommandResult;
+import com.letpot.model.LetPotCommandStatus;
 import com.letpot.model.LetPotCredentials;
-import io.jsonwebtoken.Claims;
-import io.jsonwebtoken.Jwts;
+import com.letpot.model.LetPotDeviceCommand;
+import com.letpot.model.LetPotDeviceRegistryConfig;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.model.LetPotStatusRequest;
+import com.letpot.util.LetPotCommandCodec;
+import com.letpot.util.LetPotDeviceListDecoder;
+import com.letpot.util.LetPotExecutors;
+import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import retrofit2.Call;
 import retrofit2.Response;
 
 import java.io.IOException;
-import java.time.Instant;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class LetPotService {
 
     private final LetPotApiClient letPotApiClient;
     private final LetPotMqttService letPotMqttService;
-    private LetPotCredentials credentials;
+    private final boolean ownsMqttService;
+    private final LetPotDeviceRegistry deviceRegistry;
+    private final LetPotCredentialManager credentialManager;
+    private final boolean streamingDecode;
     private static final Logger log = LoggerFactory.getLogger(LetPotService.class);
+    private static final int TEST_DURATION_SECONDS = 5;
+    // Shared so every account's device lists intern into the same table.
+    private static final LetPotDeviceListDecoder DEVICE_LIST_DECODER = new LetPotDeviceListDecoder();
 
     public LetPotService(LetPotApiClient letPotApiClient) {
-        this.letPotApiClient = letPotApiClient;
-        this.letPotMqttService = new LetPotMqttService();
+        this(letPotApiClient, new LetPotMqttService(), true, new LetPotDeviceRegistryConfig(), LetPotMetrics.noop());
+    }
+
+    // Several services (one per LetPot account) can share a single LetPotMqttService and its connection pool.
+    public LetPotService(LetPotApiClient letPotApiClient, LetPotMqttService letPotMqttService) {
+        this(letPotApiClient, letPotMqttService, false, new LetPotDeviceRegistryConfig(), LetPotMetrics.noop());
+    }
+
+    public LetPotService(LetPotApiClient letPotApiClient, LetPotMqttService letPotMqttService,
+                         LetPotDeviceRegistryConfig deviceRegistryConfig) {
+        this(letPotApiClient, letPotMqttService, false, deviceRegistryConfig, LetPotMetrics.noop());
     }
 
-    private String getUidFromToken(String token) {
-        // The LetPot token is not signed with a verifiable key, so we parse it without a key.
-        // This is acceptable as we are not verifying the token's integrity here,
-        // only extracting the payload data from a token we just received from the trusted API.
-        String unsignedToken = token.substring(0, token.lastIndexOf('.') + 1);
-        Claims claims = Jwts.parserBuilder().build().parseClaimsJwt(unsignedToken).getBody();
-        return claims.get("uid", String.class);
+    // Pass the same metrics to ApiClientFactory and LetPotMqttService to cover the REST and MQTT paths too.
+    public LetPotService(LetPotApiClient letPotApiClient, LetPotMqttService letPotMqttService,
+                         LetPotDeviceRegistryConfig deviceRegistryConfig, LetPotMetrics metrics) {
+        this(letPotApiClient, letPotMqttService, false, deviceRegistryConfig, metrics);
+    }
+
+    private LetPotService(LetPotApiClient letPotApiClient, LetPotMqttService letPotMqttService, boolean ownsMqttService,
+                          LetPotDeviceRegistryConfig deviceRegistryConfig, LetPotMetrics metrics) {
+        this.letPotApiClient = letPotApiClient;
+        this.letPotMqttService = letPotMqttService;
+        this.ownsMqttService = ownsMqttService;
+        this.streamingDecode = deviceRegistryConfig.isStreamingDecode();
+        this.credentialManager = new LetPotCredentialManager(letPotApiClient, LetPotExecutors.sharedScheduler(),
+                LetPotCredentialManager.DEFAULT_REFRESH_AHEAD, metrics);
+        this.deviceRegistry = new LetPotDeviceRegistry(this::fetchDevices, deviceRegistryConfig,
+                LetPotExecutors.sharedScheduler());
     }
 
     public LetPotCredentials login(String email, String password) {
-        Map<String, String> loginForm = new HashMap<>();
-        loginForm.put("loginType", "EMAIL");
-        loginForm.put("email", email);
-        loginForm.put("password", password);
-        loginForm.put("refresh_token", "");
+        LetPotCredentials credentials = credentialManager.login(email, password);
+        deviceRegistry.invalidate();
+        return credentials;
+    }
+
+    public LetPotCredentials getCredentials() {
+        return credentialManager.current();
+    }
+
+    // Served from the device registry; only a cold or expired cache goes to the network.
+    public List<LetPotDeviceDto> getDevices() {
+        return deviceRegistry.getDevices();
+    }
+
+    public List<LetPotDeviceDto> refreshDevices() {
+        return deviceRegistry.refresh();
+    }
+
+    public Optional<LetPotDeviceDto> findDevice(String deviceId) {
+        return deviceRegistry.findById(deviceId);
+    }
+
+    public Optional<LetPotDeviceDto> findDeviceByName(String deviceName) {
+        return deviceRegistry.findByName(deviceName);
+    }
+
+    public List<LetPotDeviceDto> getDevicesByModel(String deviceModel) {
+        return deviceRegistry.findByModel(deviceModel);
+    }
+
+    // Streams the account's devices from the API to the consumer one at a time, bypassing the device cache.
+    public void forEachDevice(Consumer<LetPotDeviceDto> consumer) {
+        try (LetPotDeviceListDecoder.DeviceIterator devices = iterateDevices()) {
+            devices.forEachRemaining(consumer);
+            if (!devices.isOk()) {
+                throw new LetPotConnectionException("Failed to get devices: response was not ok");
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new LetPotConnectionException("Failed to connect to LetPot API", e);
+        }
+    }
 
+    // Like forEachDevice, but pulled by the caller, who must close the iterator to release the connection.
+    public LetPotDeviceListDecoder.DeviceIterator iterateDevices() {
+        LetPotCredentials credentials = credentialManager.current();
         try {
-            Response<LetPotAuthenticationResponseDto> response = letPotApiClient.login(loginForm).execute();
-            if (!response.isSuccessful() || response.body() == null || !response.body().isOk()) {
-                throw new LetPotAuthenticationException("LetPot login failed: " + 
+            Response<ResponseBody> response =
+                letPotApiClient.getDevicesStream("Bearer " + credentials.getAccessToken(), credentials.getLetpotUserId()).execute();
+
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new LetPotConnectionException("Failed to get devices: " +
                     (response.errorBody() != null ? response.errorBody().string() : "Unknown error"));
             }
-            
-            LetPotAuthenticationResponseDto authResponse = response.body();
-            LetPotAuthenticationResponseDto.DataBlock data = authResponse.getData();
-            
-            String accessToken = data.getToken().getToken();
-            String letpotUserId = getUidFromToken(accessToken);
-
-            credentials = new LetPotCredentials();
-            credentials.setLetpotUserId(letpotUserId);
-            credentials.setEmail(email.toLowerCase());
-            credentials.setAccessToken(accessToken);
-            credentials.setAccessTokenExpires(data.getToken().getExp());
-            credentials.setRefreshToken(data.getRefreshToken().getToken());
-            credentials.setRefreshTokenExpires(data.getRefreshToken().getExp());
-            
-            return credentials;
+
+            return DEVICE_LIST_DECODER.iterate(response.body().byteStream());
         } catch (IOException e) {
             throw new LetPotConnectionException("Failed to connect to LetPot API", e);
         }
     }
 
-    public List<LetPotDeviceDto> getDevices() {
-        validateCredentials();
+    public void close() {
+        credentialManager.close();
+        deviceRegistry.close();
+        if (ownsMqttService) {
+            letPotMqttService.close();
+        }
+    }
+
+    private List<LetPotDeviceDto> fetchDevices() {
+        if (streamingDecode) {
+            List<LetPotDeviceDto> devices = new ArrayList<>();
+            forEachDevice(devices::add);
+            return devices;
+        }
+        LetPotCredentials credentials = credentialManager.current();
         try {
             Response<LetPotDeviceListResponseDto> response = 
                 letPotApiClient.getDevices("Bearer " + credentials.getAccessToken(), credentials.getLetpotUserId()).execute();
@@ -93,98 +176,158 @@ public class LetPotService {
         }
     }
 
-    private byte[] buildPumpCommand(boolean turnOn, int durationSeconds) {
-        // Based on the ISEConverter from the python-letpot library
-        byte[] commandArray = new byte[15];
-        commandArray[0] = 65; // Command prefix (0x41)
-        commandArray[1] = 2;  // Command type (update status)
-        commandArray[2] = (byte) (turnOn ? 1 : 0); // pump_mode (1 = on, 0 = off)
-        commandArray[3] = 0;  // pump_cycle_on = False
-        commandArray[4] = (byte) ((durationSeconds >> 8) & 0xFF);  // pump_duration high byte
-        commandArray[5] = (byte) (durationSeconds & 0xFF);         // pump_duration low byte
-        
-        // The rest of the parameters are for cycle mode, which we are not using.
-        // Fill the rest of the array with zeros.
-        for (int i = 6; i < 15; i++) {
-            commandArray[i] = 0;
-        }
-        
-        return commandArray;
-    }
-
     public void turnOnDevice(String deviceId, int durationSeconds) {
-        validateCredentials();
-        try {
-            byte[] payload = buildPumpCommand(true, durationSeconds);
-            letPotMqttService.publishCommand(deviceId, credentials.getEmail(), credentials.getLetpotUserId(), payload);
-            log.info("Successfully sent command to turn ON device {} for {} seconds", deviceId, durationSeconds);
-        } catch (Exception e) {
-            log.error("Failed to turn on device {}: {}", deviceId, e.getMessage(), e);
-            throw new LetPotConnectionException("Failed to turn on LetPot device", e);
-        }
+        join(turnOnDeviceAsync(deviceId, durationSeconds));
     }
 
     public void turnOffDevice(String deviceId) {
-        validateCredentials();
-        try {
-            byte[] payload = buildPumpCommand(false, 0);
-            letPotMqttService.publishCommand(deviceId, credentials.getEmail(), credentials.getLetpotUserId(), payload);
-            log.info("Successfully sent command to turn OFF device {}", deviceId);
-        } catch (Exception e) {
-            log.error("Failed to turn off device {}: {}", deviceId, e.getMessage(), e);
-            throw new LetPotConnectionException("Failed to turn off LetPot device", e);
+        join(turnOffDeviceAsync(deviceId));
+    }
+
+    public CompletableFuture<Void> turnOnDeviceAsync(String deviceId, int durationSeconds) {
+        return sendPumpCommandAsync(deviceId, LetPotPumpCommand.on(durationSeconds)).thenApply(status -> null);
+    }
+
+    public CompletableFuture<Void> turnOffDeviceAsync(String deviceId) {
+        return sendPumpCommandAsync(deviceId, LetPotPumpCommand.off()).thenApply(status -> null);
+    }
+
+    public CompletableFuture<LetPotCommandStatus> sendPumpCommandAsync(String deviceId, LetPotPumpCommand command) {
+        LetPotCredentials credentials = credentialManager.current();
+        byte[] payload = LetPotCommandCodec.toBytes(command);
+        return publishCommand(credentials, deviceId, command, payload)
+                .handle((status, e) -> {
+                    if (e != null) {
+                        Throwable cause = unwrap(e);
+                        log.error("Failed to turn {} device {}: {}", command.isOn() ? "on" : "off", deviceId, cause.getMessage(), cause);
+                        throw new LetPotConnectionException("Failed to turn " + (command.isOn() ? "on" : "off") + " LetPot device", cause);
+                    }
+                    if (command.isOn()) {
+                        log.info("Successfully sent command to turn ON device {} for {} seconds", deviceId, command.getDurationSeconds());
+                    } else {
+                        log.info("Successfully sent command to turn OFF device {}", deviceId);
+                    }
+                    return status;
+                });
+    }
+
+    // Completes once the device itself reports its status after the command, rather than on the broker ack.
+    public CompletableFuture<LetPotCommandAck> sendPumpCommandTrackedAsync(String deviceId, LetPotPumpCommand command) {
+        LetPotCredentials credentials = credentialManager.current();
+        byte[] payload = LetPotCommandCodec.toBytes(command);
+        return letPotMqttService.publishTrackedCommandAsync(deviceId, credentials.getEmail(), credentials.getLetpotUserId(),
+                payload, command.getCoalesceKey(), command.getCommandType());
+    }
+
+    // Completes with the device's current status, which it reports in answer to the request.
+    public CompletableFuture<LetPotCommandAck> requestStatusAsync(String deviceId) {
+        LetPotCredentials credentials = credentialManager.current();
+        LetPotStatusRequest request = LetPotStatusRequest.INSTANCE;
+        return letPotMqttService.publishTrackedCommandAsync(deviceId, credentials.getEmail(), credentials.getLetpotUserId(),
+                LetPotCommandCodec.toBytes(request), request.getCoalesceKey(), request.getCommandType());
+    }
+
+    public LetPotCommandLatencyStats getCommandLatencyStats() {
+        return letPotMqttService.getLatencyStats();
+    }
+
+    public LetPotBulkCommandReport sendBulkCommand(Collection<String> deviceIds, LetPotPumpCommand command) {
+        return join(sendBulkCommandAsync(deviceIds, command));
+    }
+
+    public LetPotBulkCommandReport sendBulkCommand(Predicate<LetPotDeviceDto> filter, LetPotPumpCommand command) {
+        List<String> deviceIds = new ArrayList<>();
+        for (LetPotDeviceDto device : getDevices()) {
+            if (filter.test(device)) {
+                deviceIds.add(device.getDeviceId());
+            }
         }
+        return sendBulkCommand(deviceIds, command);
+    }
+
+    // Reads credentials and encodes the command once, then pipelines one publish per device through the
+    // account's connection. The batch counts as one call against the account's MQTT rate limit. Failures
+    // are reported per device rather than thrown.
+    public CompletableFuture<LetPotBulkCommandReport> sendBulkCommandAsync(Collection<String> deviceIds, LetPotPumpCommand command) {
+        LetPotCredentials credentials = credentialManager.current();
+        long startNanos = System.nanoTime();
+        byte[] payload = LetPotCommandCodec.toBytes(command);
+        Set<String> uniqueDeviceIds = new LinkedHashSet<>(deviceIds);
+
+        Map<String, CompletableFuture<LetPotCommandResult>> pending = new LinkedHashMap<>();
+        letPotMqttService.publishBulkCommandAsync(uniqueDeviceIds, credentials.getEmail(), credentials.getLetpotUserId(),
+                        payload, command.getCoalesceKey())
+                .forEach((deviceId, sent) -> pending.put(deviceId, sent.handle((status, e) -> e == null
+                        ? new LetPotCommandResult(deviceId, status, null)
+                        : new LetPotCommandResult(deviceId, LetPotCommandStatus.FAILED, unwrap(e)))));
+
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    Map<String, LetPotCommandResult> results = new LinkedHashMap<>();
+                    pending.forEach((deviceId, result) -> results.put(deviceId, result.join()));
+                    LetPotBulkCommandReport report = new LetPotBulkCommandReport(command, results,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    log.info("Bulk pump command {} to {} devices: {} sent, {} coalesced, {} failed in {} ms",
+                            command.isOn() ? "ON" : "OFF", results.size(), report.count(LetPotCommandStatus.SENT),
+                            report.count(LetPotCommandStatus.COALESCED), report.count(LetPotCommandStatus.FAILED),
+                            report.getElapsedMillis());
+                    return report;
+                });
+    }
+
+    private CompletableFuture<LetPotCommandStatus> publishCommand(LetPotCredentials credentials, String deviceId,
+                                                                  LetPotDeviceCommand command, byte[] payload) {
+        return letPotMqttService.publishCommandAsync(deviceId, credentials.getEmail(), credentials.getLetpotUserId(),
+                payload, command.getCoalesceKey());
+    }
+
+    // Subscribes to live status reports for the device and asks it for its current status, so the
+    // listener receives the initial state without waiting for the next change.
+    public LetPotSubscription subscribeDeviceStatus(String deviceId, LetPotDeviceStatusListener listener) {
+        LetPotCredentials credentials = credentialManager.current();
+        LetPotSubscription subscription = letPotMqttService.subscribeDeviceStatus(deviceId, credentials.getEmail(),
+                credentials.getLetpotUserId(), listener);
+        letPotMqttService.publishCommandAsync(deviceId, credentials.getEmail(), credentials.getLetpotUserId(),
+                        LetPotCommandCodec.toBytes(LetPotStatusRequest.INSTANCE), LetPotStatusRequest.INSTANCE.getCoalesceKey())
+                .exceptionally(e -> {
+                    log.warn("Failed to request status of device {}: {}", deviceId, unwrap(e).getMessage());
+                    return null;
+                });
+        return subscription;
     }
 
     public void testDevice(String deviceId) {
         try {
-            turnOnDevice(deviceId, 5); // Turn on for 5 seconds
-            Thread.sleep(5000); // Wait for 5 seconds
-            turnOffDevice(deviceId); // Turn off the device
+            testDeviceAsync(deviceId).get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Device test was interrupted", e);
-        } catch (Exception e) {
-            log.error("Device test failed", e);
-            throw new RuntimeException("Device test failed", e);
+        } catch (ExecutionException e) {
+            log.error("Device test failed", e.getCause());
+            throw new RuntimeException("Device test failed", e.getCause());
         }
     }
 
-    private void validateCredentials() {
-        if (credentials == null) {
-            throw new LetPotAuthenticationException("Not logged in. Call login() first.");
-        }
+    // Turns the pump on and, TEST_DURATION_SECONDS later, off again; no thread waits in between.
+    public CompletableFuture<Void> testDeviceAsync(String deviceId) {
+        Executor afterTestDuration = CompletableFuture.delayedExecutor(TEST_DURATION_SECONDS, TimeUnit.SECONDS,
+                LetPotExecutors.sharedScheduler());
+        return turnOnDeviceAsync(deviceId, TEST_DURATION_SECONDS)
+                .thenComposeAsync(v -> turnOffDeviceAsync(deviceId), afterTestDuration);
+    }
 
-        if (Instant.now().getEpochSecond() >= credentials.getAccessTokenExpires()) {
-            if (Instant.now().getEpochSecond() >= credentials.getRefreshTokenExpires()) {
-                throw new LetPotAuthenticationException("LetPot refresh token has expired. Please log in again.");
-            }
-            
-            try {
-                Response<LetPotAuthenticationResponseDto> response = 
-                    letPotApiClient.refreshToken(credentials.getRefreshToken()).execute();
-                
-                if (!response.isSuccessful() || response.body() == null || !response.body().isOk()) {
-                    throw new LetPotAuthenticationException("Failed to refresh token: " + 
-                        (response.errorBody() != null ? response.errorBody().string() : "Unknown error"));
-                }
-                
-                LetPotAuthenticationResponseDto refreshResponse = response.body();
-                LetPotAuthenticationResponseDto.DataBlock data = refreshResponse.getData();
-                String newAccessToken = data.getToken().getToken();
-                String letpotUserId = getUidFromToken(newAccessToken);
-                
-                credentials.setAccessToken(newAccessToken);
-                credentials.setLetpotUserId(letpotUserId);
-                credentials.setAccessTokenExpires(data.getToken().getExp());
-
-                if (data.getRefreshToken() != null) {
-                    credentials.setRefreshToken(data.getRefreshToken().getToken());
-                    credentials.setRefreshTokenExpires(data.getRefreshToken().getExp());
-                }
-            } catch (IOException e) {
-                throw new LetPotConnectionException("Failed to refresh token", e);
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw e;
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,6 @@
+package com.letpot.service;
+
+public interface LetPotSubscription extends AutoCloseable {
+    @Override
+    void close();
+}
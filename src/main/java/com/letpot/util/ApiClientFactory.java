@@ -1,21 +1,23 @@
 package com.letpot.util;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.letpot.client.LetPotApiClient;
-import retrofit2.Retrofit;
-import retrofit2.converter.jackson.JacksonConverterFactory;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.model.LetPotHttpConfig;
 
+// Clients from here share LetPotHttpTransport.shared(); create a LetPotHttpTransport to tune or isolate the stack.
 public class ApiClientFactory {
-    private static final String BASE_URL = "https://api.letpot.net/";
+    public static final String BASE_URL = LetPotHttpConfig.DEFAULT_BASE_URL;
     
     public static LetPotApiClient createLetPotApiClient() {
-        ObjectMapper objectMapper = new ObjectMapper();
-        
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(BASE_URL)
-                .addConverterFactory(JacksonConverterFactory.create(objectMapper))
-                .build();
-        
-        return retrofit.create(LetPotApiClient.class);
+        return createLetPotApiClient(BASE_URL, LetPotMetrics.noop());
     }
-} 
\ No newline at end of file
+
+    public static LetPotApiClient createLetPotApiClient(LetPotMetrics metrics) {
+        return createLetPotApiClient(BASE_URL, metrics);
+    }
+
+    // baseUrl must end with a slash, e.g. a local mock server's http://localhost:8080/.
+    public static LetPotApiClient createLetPotApiClient(String baseUrl, LetPotMetrics metrics) {
+        return LetPotHttpTransport.shared().createApiClient(baseUrl, metrics);
+    }
+}
@@ -0,0 +1,79 @@
+package com.letpot.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consecutive-failure circuit breaker. Once open, calls fail fast until the open duration has passed;
+ * then one probe call is let through, whose outcome closes the circuit or opens it again. Lock-free:
+ * the state is a single deadline, 0 while closed, changed only by CAS.
+ */
+public final class LetPotCircuitBreaker {
+
+    // acquire() results other than a probe token.
+    public static final long REJECTED = -1;
+    public static final long CLOSED = 0;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    // Times are offsets from this, plus one, so that 0 can mean closed whatever System.nanoTime() returns.
+    private final long baseNanos = System.nanoTime();
+    private final AtomicLong openUntil = new AtomicLong(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    public LetPotCircuitBreaker(int failureThreshold, long openNanos) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * Returns {@link #CLOSED} for a normal call, {@link #REJECTED} if the call must fail fast, or a
+     * probe token when this call is the one probe of a half-open circuit. Pass the result to
+     * {@link #onSuccess} or {@link #onFailure}.
+     */
+    public long acquire() {
+        long until = openUntil.get();
+        if (until == CLOSED) {
+            return CLOSED;
+        }
+        long now = now();
+        if (now < until) {
+            return REJECTED;
+        }
+        // Half-open: the first caller to move the deadline becomes the probe; the others keep failing fast.
+        long probe = now + openNanos;
+        return openUntil.compareAndSet(until, probe) ? probe : REJECTED;
+    }
+
+    public void onSuccess(long permit) {
+        consecutiveFailures.set(0);
+        if (permit > CLOSED) {
+            openUntil.compareAndSet(permit, CLOSED);
+        }
+    }
+
+    public void onFailure(long permit) {
+        if (permit > CLOSED) {
+            openUntil.compareAndSet(permit, now() + openNanos);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openUntil.compareAndSet(CLOSED, now() + openNanos);
+        }
+    }
+
+    public State getState() {
+        long until = openUntil.get();
+        if (until == CLOSED) {
+            return State.CLOSED;
+        }
+        return now() < until ? State.OPEN : State.HALF_OPEN;
+    }
+
+    private long now() {
+        return System.nanoTime() - baseNanos + 1;
+    }
+}
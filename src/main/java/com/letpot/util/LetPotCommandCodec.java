@@ -0,0 +1,137 @@
+package com.letpot.util;
+
+import com.letpot.model.LetPotDeviceCommand;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.model.LetPotStatusRequest;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Encodes and decodes ISE device commands, modeled on get_update_status_message and
+ * get_current_status_message in python-letpot's ISEConverter. {@link #encode} writes into a
+ * caller-supplied buffer; {@link #toBytes} returns shared, pre-encoded arrays for the commands
+ * {@link LetPotPumpCommand} caches, so steady-state callers allocate nothing per command.
+ *
+ * <p>Update-status layout: prefix 65, type 2, pump mode, cycle flag, then duration, cycle on and cycle
+ * off seconds as big-endian shorts, padded with zeros to 15 bytes. This is the field order the device
+ * mirrors in its status reports (see {@link LetPotStatusDecoder}). ISE devices have no light, so
+ * there is no light schedule command.
+ */
+public final class LetPotCommandCodec {
+
+    public static final int UPDATE_STATUS_PREFIX = 65;
+    public static final int UPDATE_STATUS_TYPE = 2;
+    public static final int STATUS_REQUEST_PREFIX = 97;
+    public static final int STATUS_REQUEST_TYPE = 1;
+    public static final int PUMP_COMMAND_LENGTH = 15;
+    public static final int STATUS_REQUEST_LENGTH = 2;
+    public static final int MAX_COMMAND_LENGTH = PUMP_COMMAND_LENGTH;
+
+    private static final byte[] OFF = encode(LetPotPumpCommand.off());
+    private static final byte[] STATUS_REQUEST = encode(LetPotStatusRequest.INSTANCE);
+    private static final AtomicReferenceArray<byte[]> ON =
+            new AtomicReferenceArray<>(LetPotPumpCommand.CACHED_DURATION_SECONDS + 1);
+
+    private LetPotCommandCodec() {
+    }
+
+    public static int encodedLength(LetPotDeviceCommand command) {
+        if (command instanceof LetPotPumpCommand) {
+            return PUMP_COMMAND_LENGTH;
+        }
+        if (command instanceof LetPotStatusRequest) {
+            return STATUS_REQUEST_LENGTH;
+        }
+        throw new IllegalArgumentException("Unsupported command: " + command);
+    }
+
+    /**
+     * Writes the command into {@code dst} at {@code offset} and returns the number of bytes written.
+     */
+    public static int encode(LetPotDeviceCommand command, byte[] dst, int offset) {
+        int length = encodedLength(command);
+        if (offset < 0 || offset + length > dst.length) {
+            throw new IllegalArgumentException("Buffer too small for " + length + " byte command at offset " + offset);
+        }
+        if (command instanceof LetPotStatusRequest) {
+            dst[offset] = (byte) STATUS_REQUEST_PREFIX;
+            dst[offset + 1] = (byte) STATUS_REQUEST_TYPE;
+            return length;
+        }
+        LetPotPumpCommand pump = (LetPotPumpCommand) command;
+        dst[offset] = (byte) UPDATE_STATUS_PREFIX;
+        dst[offset + 1] = (byte) UPDATE_STATUS_TYPE;
+        dst[offset + 2] = (byte) (pump.isOn() ? 1 : 0);
+        dst[offset + 3] = (byte) (pump.isCycleOn() ? 1 : 0);
+        writeUnsignedShort(pump.getDurationSeconds(), dst, offset + 4);
+        writeUnsignedShort(pump.getCycleOnSeconds(), dst, offset + 6);
+        writeUnsignedShort(pump.getCycleOffSeconds(), dst, offset + 8);
+        for (int i = offset + 10; i < offset + length; i++) {
+            dst[i] = 0;
+        }
+        return length;
+    }
+
+    /**
+     * The command's wire bytes. Cached commands return a shared array, which must not be modified.
+     */
+    public static byte[] toBytes(LetPotDeviceCommand command) {
+        if (command instanceof LetPotStatusRequest) {
+            return STATUS_REQUEST;
+        }
+        if (command instanceof LetPotPumpCommand) {
+            LetPotPumpCommand pump = (LetPotPumpCommand) command;
+            if (!pump.isOn()) {
+                return OFF;
+            }
+            int duration = pump.getDurationSeconds();
+            if (!pump.isCycleOn() && duration <= LetPotPumpCommand.CACHED_DURATION_SECONDS) {
+                byte[] bytes = ON.get(duration);
+                if (bytes == null) {
+                    bytes = encode(pump);
+                    ON.set(duration, bytes);
+                }
+                return bytes;
+            }
+        }
+        return encode(command);
+    }
+
+    /**
+     * Parses a command, e.g. one read back from the command journal. Returns the shared instances for
+     * cached commands; throws IllegalArgumentException for anything else than a complete ISE command.
+     */
+    public static LetPotDeviceCommand decode(byte[] message, int offset, int length) {
+        if (length >= 2 && message[offset] == STATUS_REQUEST_PREFIX && message[offset + 1] == STATUS_REQUEST_TYPE) {
+            return LetPotStatusRequest.INSTANCE;
+        }
+        if (length < PUMP_COMMAND_LENGTH || message[offset] != UPDATE_STATUS_PREFIX || message[offset + 1] != UPDATE_STATUS_TYPE) {
+            throw new IllegalArgumentException("Not an ISE command");
+        }
+        boolean on = message[offset + 2] != 0;
+        boolean cycleOn = message[offset + 3] != 0;
+        int duration = readUnsignedShort(message, offset + 4);
+        if (!on) {
+            return LetPotPumpCommand.off();
+        }
+        if (cycleOn) {
+            return LetPotPumpCommand.cycle(duration, readUnsignedShort(message, offset + 6), readUnsignedShort(message, offset + 8));
+        }
+        return LetPotPumpCommand.on(duration);
+    }
+
+    private static byte[] encode(LetPotDeviceCommand command) {
+        byte[] bytes = new byte[encodedLength(command)];
+        encode(command, bytes, 0);
+        return bytes;
+    }
+
+    private static void writeUnsignedShort(int value, byte[] dst, int offset) {
+        dst[offset] = (byte) ((value >>> 8) & 0xFF);
+        dst[offset + 1] = (byte) (value & 0xFF);
+    }
+
+    private static int readUnsignedShort(byte[] message, int offset) {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,426 @@
+package com.letpot.util;
+
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped log of outbound device commands. A command is appended before it is published and
+ * acknowledged once the broker has it; whatever is still unacknowledged after a crash or a dropped connection
+ * can be replayed in order. Appends are a memory copy into the mapped file, which survives a process crash as
+ * soon as it returns. Surviving power loss needs the page to reach disk: a flusher thread forces the mapping
+ * every group commit interval, so one fsync covers every append since the last one.
+ *
+ * <p>Record layout: {@code int length | byte type | body | int crc32c(type + body)}; a zero length ends the log.
+ * When the file fills up, live entries are copied into a fresh file that atomically replaces it.
+ */
+public final class LetPotCommandJournal implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LetPotCommandJournal.class);
+    private static final byte TYPE_COMMAND = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final byte TYPE_MESSAGE_ID = 3;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+
+    private final Path file;
+    private final int capacity;
+    private final long groupCommitNanos;
+    private final Thread flusher;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    // Everything below is guarded by this journal's monitor.
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private final Map<Long, Entry> live = new LinkedHashMap<>();
+    // Newest live entry per user, device and coalesce key, so a newer command retires the one it replaces.
+    private final Map<String, Long> liveByCoalesceKey = new HashMap<>();
+    private final Map<String, Integer> lastMessageIds = new HashMap<>();
+    private long nextSeq = 1;
+    private CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+    private boolean unflushed;
+    private volatile boolean closed;
+
+    public LetPotCommandJournal(Path file, int capacityBytes, Duration groupCommitInterval) {
+        this.file = file;
+        this.capacity = capacityBytes;
+        this.groupCommitNanos = groupCommitInterval.toNanos();
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            open(file);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open command journal " + file, e);
+        }
+        log.info("Opened command journal {} with {} unacknowledged commands", file, live.size());
+        this.flusher = new Thread(this::runFlusher, "letpot-journal-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Returns the entry's sequence number. An older live command for the same device and coalesce key is
+    // retired, as it would be coalesced away in the send queue anyway.
+    public synchronized long append(String userId, String email, String deviceId, String coalesceKey, byte[] command) {
+        checkOpen();
+        long seq = nextSeq++;
+        Entry entry = new Entry(seq, userId, email, deviceId, coalesceKey, command);
+        write(commandRecord(entry));
+        live.put(seq, entry);
+        if (coalesceKey != null) {
+            Long replaced = liveByCoalesceKey.put(coalesceKeyOf(entry), seq);
+            if (replaced != null) {
+                ackLocked(replaced, -1);
+            }
+        }
+        return seq;
+    }
+
+    // Idempotent; a non-negative messageId is remembered for the user so ids continue across restarts.
+    public synchronized void markAcked(long seq, int messageId) {
+        if (closed) {
+            return;
+        }
+        ackLocked(seq, messageId);
+    }
+
+    // Completes once everything appended so far has been forced to disk.
+    public synchronized CompletableFuture<Void> whenDurable() {
+        return unflushed ? nextFlush : CompletableFuture.completedFuture(null);
+    }
+
+    // Unacknowledged commands of the user, oldest first.
+    public synchronized List<Entry> unacked(String userId) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : live.values()) {
+            if (entry.getUserId().equals(userId)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    // User id to email of every user with unacknowledged commands.
+    public synchronized Map<String, String> usersWithUnacked() {
+        Map<String, String> users = new LinkedHashMap<>();
+        for (Entry entry : live.values()) {
+            users.putIfAbsent(entry.getUserId(), entry.getEmail());
+        }
+        return users;
+    }
+
+    public synchronized boolean hasUnacked(String userId) {
+        for (Entry entry : live.values()) {
+            if (entry.getUserId().equals(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return live.size();
+    }
+
+    public synchronized OptionalInt lastMessageId(String userId) {
+        Integer messageId = lastMessageIds.get(userId);
+        return messageId == null ? OptionalInt.empty() : OptionalInt.of(messageId);
+    }
+
+    @Override
+    public void close() {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            map.force();
+            pending = nextFlush;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close command journal {}: {}", file, e.getMessage());
+            }
+        }
+        pending.complete(null);
+        LockSupport.unpark(flusher);
+    }
+
+    private void ackLocked(long seq, int messageId) {
+        Entry entry = live.remove(seq);
+        if (entry == null) {
+            return;
+        }
+        if (entry.getCoalesceKey() != null) {
+            liveByCoalesceKey.remove(coalesceKeyOf(entry), seq);
+        }
+        ByteBuffer record = record(TYPE_ACK, 12);
+        record.putLong(seq);
+        record.putInt(messageId);
+        write(record);
+        if (messageId >= 0) {
+            lastMessageIds.put(entry.getUserId(), messageId);
+        }
+    }
+
+    private void runFlusher() {
+        while (!closed) {
+            LockSupport.parkNanos(this, groupCommitNanos);
+            CompletableFuture<Void> group;
+            MappedByteBuffer toForce;
+            synchronized (this) {
+                if (closed || !unflushed) {
+                    continue;
+                }
+                group = nextFlush;
+                nextFlush = new CompletableFuture<>();
+                unflushed = false;
+                toForce = map;
+            }
+            try {
+                toForce.force();
+                group.complete(null);
+            } catch (RuntimeException e) {
+                // An UncheckedIOException from msync; waiters should not wait forever.
+                group.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Command journal " + file + " is closed");
+        }
+    }
+
+    // Starts a record in the scratch buffer, which is grown to fit bodySize bytes after the type.
+    private ByteBuffer record(byte type, int bodySize) {
+        int size = bodySize + RECORD_OVERHEAD;
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        ByteBuffer record = scratch.clear();
+        record.putInt(0);
+        record.put(type);
+        return record;
+    }
+
+    private ByteBuffer commandRecord(Entry entry) {
+        byte[] userId = utf8(entry.getUserId());
+        byte[] email = utf8(entry.getEmail());
+        byte[] deviceId = utf8(entry.getDeviceId());
+        byte[] coalesceKey = utf8(entry.getCoalesceKey());
+        byte[] command = entry.getCommand();
+        ByteBuffer record = record(TYPE_COMMAND, 8 + stringSize(userId) + stringSize(email) + stringSize(deviceId)
+                + stringSize(coalesceKey) + 4 + command.length);
+        record.putLong(entry.getSeq());
+        putString(record, userId);
+        putString(record, email);
+        putString(record, deviceId);
+        putString(record, coalesceKey);
+        record.putInt(command.length);
+        record.put(command);
+        return record;
+    }
+
+    // Seals the record with its length and checksum and appends it, compacting first if it does not fit.
+    private void write(ByteBuffer record) {
+        seal(record);
+        if (map.remaining() < record.remaining() + 4) {
+            // Compaction reuses the scratch buffer, so take the record out of it first.
+            record = ByteBuffer.allocate(record.remaining()).put(record).flip();
+            compact(record.remaining() + 4);
+        }
+        map.put(record);
+        unflushed = true;
+    }
+
+    private void seal(ByteBuffer record) {
+        int length = record.position() - 4;
+        crc.reset();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        record.putInt(0, length);
+        record.flip();
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(byte[] utf8) {
+        return 2 + (utf8 == null ? 0 : utf8.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] utf8) {
+        if (utf8 == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        buffer.putShort((short) utf8.length);
+        buffer.put(utf8);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Copies live entries and per-user message ids into a new file and swaps it in.
+    private void compact(int needed) {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        List<Entry> entries = new ArrayList<>(live.values());
+        Map<String, Integer> messageIds = new HashMap<>(lastMessageIds);
+        try {
+            channel.close();
+            Files.deleteIfExists(compacted);
+            open(compacted);
+            for (Map.Entry<String, Integer> messageId : messageIds.entrySet()) {
+                byte[] userId = utf8(messageId.getKey());
+                ByteBuffer record = record(TYPE_MESSAGE_ID, stringSize(userId) + 4);
+                putString(record, userId);
+                record.putInt(messageId.getValue());
+                writeCompacted(record);
+            }
+            for (Entry entry : entries) {
+                writeCompacted(commandRecord(entry));
+            }
+            map.force();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compact command journal " + file, e);
+        }
+        if (map.remaining() < needed) {
+            throw new IllegalStateException("Command journal " + file + " is full with " + entries.size()
+                    + " unacknowledged commands");
+        }
+        log.debug("Compacted command journal {} to {} live commands", file, entries.size());
+    }
+
+    private void writeCompacted(ByteBuffer record) {
+        seal(record);
+        if (map.remaining() < record.remaining() + 4) {
+            throw new IllegalStateException("Command journal " + file + " is too small for its unacknowledged commands");
+        }
+        map.put(record);
+    }
+
+    private void open(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Replays the log into memory and positions the mapping after the last intact record.
+    private void recover() {
+        ByteBuffer view = map.duplicate();
+        byte[] record = new byte[256];
+        boolean damaged = false;
+        while (view.remaining() > RECORD_OVERHEAD) {
+            int start = view.position();
+            int length = view.getInt();
+            if (length <= 0 || length > view.remaining() - 4) {
+                damaged = length != 0;
+                view.position(start);
+                break;
+            }
+            if (record.length < length) {
+                record = new byte[length];
+            }
+            view.get(record, 0, length);
+            int storedCrc = view.getInt();
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != storedCrc) {
+                // A torn write from a crash; everything before it is intact.
+                damaged = true;
+                view.position(start);
+                break;
+            }
+            try {
+                apply(ByteBuffer.wrap(record, 0, length));
+            } catch (BufferUnderflowException e) {
+                damaged = true;
+                view.position(start);
+                break;
+            }
+        }
+        map.position(view.position());
+        for (Entry entry : live.values()) {
+            if (entry.getCoalesceKey() != null) {
+                liveByCoalesceKey.put(coalesceKeyOf(entry), entry.getSeq());
+            }
+        }
+        // Appends would overwrite the damaged record only in part, and whatever follows it could be replayed on the
+        // next open; a fresh copy of what was recovered leaves nothing behind.
+        if (damaged) {
+            log.warn("Command journal {} is damaged at offset {}; keeping the {} commands before it",
+                    file, view.position(), live.size());
+            compact(0);
+        }
+    }
+
+    private void apply(ByteBuffer record) {
+        byte type = record.get();
+        if (type == TYPE_COMMAND) {
+            long seq = record.getLong();
+            String userId = getString(record);
+            String email = getString(record);
+            String deviceId = getString(record);
+            String coalesceKey = getString(record);
+            byte[] command = new byte[record.getInt()];
+            record.get(command);
+            live.put(seq, new Entry(seq, userId, email, deviceId, coalesceKey, command));
+            nextSeq = Math.max(nextSeq, seq + 1);
+        } else if (type == TYPE_ACK) {
+            Entry entry = live.remove(record.getLong());
+            int messageId = record.getInt();
+            if (entry != null && messageId >= 0) {
+                lastMessageIds.put(entry.getUserId(), messageId);
+            }
+        } else if (type == TYPE_MESSAGE_ID) {
+            lastMessageIds.put(getString(record), record.getInt());
+        }
+    }
+
+    private static String coalesceKeyOf(Entry entry) {
+        return entry.getUserId() + '\0' + entry.getDeviceId() + '\0' + entry.getCoalesceKey();
+    }
+
+    @Value
+    public static class Entry {
+        long seq;
+        String userId;
+        String email;
+        String deviceId;
+        String coalesceKey;
+        byte[] command;
+    }
+}
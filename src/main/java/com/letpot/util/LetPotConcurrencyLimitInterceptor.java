@@ -0,0 +1,58 @@
+package com.letpot.util;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Caps the REST calls in flight on a transport. The dispatcher's maxRequests only limits enqueue()d calls,
+// while Retrofit's synchronous execute() runs on the caller's thread and bypasses the dispatcher entirely.
+public class LetPotConcurrencyLimitInterceptor implements Interceptor {
+
+    private final Semaphore permits;
+    private final int maxConcurrentCalls;
+    // Zero waits as long as it takes.
+    private final long maxWaitNanos;
+
+    public LetPotConcurrencyLimitInterceptor(int maxConcurrentCalls, Duration maxWait) {
+        if (maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("maxConcurrentCalls must be positive: " + maxConcurrentCalls);
+        }
+        this.permits = new Semaphore(maxConcurrentCalls);
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        acquire();
+        try {
+            // Held until the response headers are in; the caller reads the body right after.
+            return chain.proceed(chain.request());
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getInFlightCount() {
+        return maxConcurrentCalls - permits.availablePermits();
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            if (maxWaitNanos <= 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                throw new InterruptedIOException("Timed out waiting for one of " + maxConcurrentCalls
+                        + " concurrent LetPot API calls");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a LetPot API call slot");
+        }
+    }
+}
@@ -0,0 +1,871 @@
+package com.letpot.util;
+
+import com.letpot.model.LetPotCommandStatus;
+import com.letpot.model.LetPotDailyWatering;
+import com.letpot.model.LetPotDeviceEvent;
+import com.letpot.model.LetPotHistoryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Embedded time-series store for device history: status reports and command outcomes, kept for months in
+ * memory-mapped segment files. A new segment starts with each calendar day and whenever the current one is full,
+ * so retention deletes whole files.
+ *
+ * <p>Segments are made of 128-byte chunks, each owned by one device: {@code int device+1 | long first timestamp}
+ * followed by that device's events. An event is its type byte, its timestamp as a zigzag varint delta to the
+ * previous event in the chunk, and its fields as varints, so an hourly status report takes about eleven bytes.
+ * Device ids and command types are indexes into a dictionary file shared by all segments. The type byte, and a
+ * chunk's device, are written last, so a torn append reads as the end of the chunk. The chunks of every device
+ * and their time spans are indexed in memory, so a range query decodes only that device's events within the range;
+ * the index is rebuilt by scanning the segments on open.
+ *
+ * <p>{@link #recordStatus} and {@link #recordCommand} are for hot paths such as MQTT callback threads: they copy the
+ * event into a preallocated queue, dropping it if the queue is full, and a writer thread appends it, so segment
+ * rollover (flushing the previous segment, deleting expired ones) never blocks the caller. {@link #append} writes
+ * synchronously.
+ */
+public final class LetPotDeviceHistory implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LetPotDeviceHistory.class);
+    private static final int CHUNK_SIZE = 128;
+    private static final int CHUNK_HEADER_SIZE = 4 + 8;
+    // Upper bound of an encoded event: type, delta and five varint or byte fields.
+    private static final int MAX_EVENT_SIZE = 40;
+    private static final byte TYPE_STATUS = 1;
+    private static final byte TYPE_COMMAND = 2;
+    private static final String DICTIONARY_FILE = "dictionary";
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final LetPotCommandStatus[] COMMAND_STATUSES = LetPotCommandStatus.values();
+    // How far before the first requested day dailyWatering looks for a pump that was already running.
+    private static final long WATERING_LOOKBACK_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Path directory;
+    private final int capacity;
+    private final long retentionMillis;
+    private final ZoneId zone;
+    private final byte[] scratch = new byte[MAX_EVENT_SIZE];
+    private final PendingEvent appendEvent = new PendingEvent();
+
+    // Events waiting for the writer thread, slots reused; counters and slot contents are guarded by the queue.
+    private final PendingEvent[] queue;
+    private long queueHead;
+    private long queueTail;
+    private boolean stopping;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+
+    // Everything below is guarded by this store's monitor. Queries copy what they need under it and decode outside.
+    private final FileChannel dictionaryChannel;
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> dictionaryIds = new HashMap<>();
+    // Oldest first; the last one takes appends.
+    private final List<Segment> segments = new ArrayList<>();
+    // Segment files mapped at another capacity than the configured one, by the end of their day; left out of
+    // queries and deleted once that day falls out of the retention.
+    private final Map<Path, Long> unmappedSegments = new HashMap<>();
+    private long nextSegmentSeq;
+    private boolean closed;
+
+    public LetPotDeviceHistory(LetPotHistoryConfig config) {
+        this.directory = config.getDirectory();
+        this.capacity = config.getSegmentCapacityBytes() / CHUNK_SIZE * CHUNK_SIZE;
+        this.retentionMillis = config.getRetention().toMillis();
+        this.zone = config.getZone();
+        if (capacity < CHUNK_SIZE) {
+            throw new IllegalArgumentException("segmentCapacityBytes must be at least " + CHUNK_SIZE);
+        }
+        if (config.getWriteQueueCapacity() < 1) {
+            throw new IllegalArgumentException("writeQueueCapacity must be at least 1");
+        }
+        this.queue = new PendingEvent[config.getWriteQueueCapacity()];
+        for (int i = 0; i < queue.length; i++) {
+            queue[i] = new PendingEvent();
+        }
+        try {
+            Files.createDirectories(directory);
+            dictionaryChannel = openDictionary();
+            openSegments();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open device history " + directory, e);
+        }
+        evictExpired();
+        log.info("Opened device history {} with {} events in {} segments", directory, getEventCount(), segments.size());
+        this.writer = new Thread(this::runWriter, "letpot-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queues a status report for the writer thread without allocating. Returns false if the queue was full.
+    public boolean recordStatus(String deviceId, long timestampMillis, int pumpMode, boolean pumpCycleOn,
+                                int pumpDurationSeconds, int pumpCycleOnSeconds, int pumpCycleOffSeconds) {
+        synchronized (queue) {
+            PendingEvent event = claimSlot();
+            if (event == null) {
+                return false;
+            }
+            event.setStatus(deviceId, timestampMillis, pumpMode, pumpCycleOn, pumpDurationSeconds, pumpCycleOnSeconds,
+                    pumpCycleOffSeconds);
+            publishSlot();
+        }
+        return true;
+    }
+
+    // Queues a command outcome for the writer thread without allocating. Returns false if the queue was full.
+    public boolean recordCommand(String deviceId, long timestampMillis, String commandType, LetPotCommandStatus status,
+                                 long latencyMillis) {
+        synchronized (queue) {
+            PendingEvent event = claimSlot();
+            if (event == null) {
+                return false;
+            }
+            event.setCommand(deviceId, timestampMillis, commandType, status, latencyMillis);
+            publishSlot();
+        }
+        return true;
+    }
+
+    // Waits until every event recorded before the call has been appended, e.g. before querying what was just recorded.
+    public void flush() {
+        synchronized (queue) {
+            long target = queueTail;
+            while (queueHead < target && writer.isAlive()) {
+                try {
+                    queue.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Events recorded while the write queue was full, or after close.
+    public long getDroppedEventCount() {
+        return dropped.sum();
+    }
+
+    public synchronized void append(LetPotDeviceEvent event) {
+        appendEvent.set(event);
+        write(appendEvent);
+    }
+
+    private synchronized void write(PendingEvent event) {
+        if (closed) {
+            throw new IllegalStateException("Device history " + directory + " is closed");
+        }
+        long millis = event.millis;
+        int device = dictionaryId(event.deviceId);
+        int commandType = event.type == TYPE_COMMAND ? dictionaryId(event.commandType) : 0;
+        Segment segment = current();
+        // Late events, from a day before the current segment's, stay in the current segment.
+        if (segment == null || millis >= segment.dayEndMillis) {
+            segment = newSegment(millis);
+        }
+        DeviceChunks chunks = segment.devices.get(device);
+        int length = chunks == null ? 0 : encode(event, commandType, millis - chunks.lastMillis);
+        if (chunks == null || chunks.chunkEnd() - chunks.position < length) {
+            if (segment.chunkCount * CHUNK_SIZE + CHUNK_SIZE > capacity) {
+                segment = newSegment(millis);
+            }
+            chunks = segment.startChunk(device, millis);
+            length = encode(event, commandType, 0);
+        }
+        // The type byte goes last: until it is written, readers see the end of the chunk.
+        segment.map.put(chunks.position + 1, scratch, 1, length - 1);
+        segment.map.put(chunks.position, scratch[0]);
+        chunks.position += length;
+        segment.indexEvent(chunks, millis);
+    }
+
+    // Events of the device with fromMillis <= timestamp < toMillis, in the order they were appended.
+    public List<LetPotDeviceEvent> query(String deviceId, long fromMillis, long toMillis) {
+        List<LetPotDeviceEvent> events = new ArrayList<>();
+        forEach(deviceId, fromMillis, toMillis, events::add);
+        return events;
+    }
+
+    public void forEach(String deviceId, long fromMillis, long toMillis, Consumer<LetPotDeviceEvent> consumer) {
+        Event event = new Event();
+        for (ChunkRange range : snapshot(deviceId, fromMillis, toMillis)) {
+            scan(range, event, fromMillis, toMillis, () -> consumer.accept(toDeviceEvent(deviceId, event)));
+        }
+    }
+
+    // Watering time and pump starts per day from the device's status reports, one entry per day from `from` to
+    // `to` inclusive. The pump counts as running from a report that it is on until one that it is off, or until its
+    // duration runs out; a pump switched on more than a day before `from` without a report since is missed.
+    public List<LetPotDailyWatering> dailyWatering(String deviceId, LocalDate from, LocalDate to) {
+        int days = (int) ChronoUnit.DAYS.between(from, to) + 1;
+        if (days < 1) {
+            throw new IllegalArgumentException("to " + to + " is before from " + from);
+        }
+        long[] dayStarts = new long[days + 1];
+        for (int i = 0; i <= days; i++) {
+            dayStarts[i] = from.plusDays(i).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        long scanFrom = dayStarts[0] - WATERING_LOOKBACK_MILLIS;
+        WateringTotals totals = new WateringTotals(dayStarts, Math.min(dayStarts[days], System.currentTimeMillis()));
+        Event event = new Event();
+        for (ChunkRange range : snapshot(deviceId, scanFrom, dayStarts[days])) {
+            scan(range, event, scanFrom, dayStarts[days], () -> totals.accept(event));
+        }
+        totals.finish();
+
+        List<LetPotDailyWatering> result = new ArrayList<>(days);
+        for (int i = 0; i < days; i++) {
+            result.add(new LetPotDailyWatering(deviceId, from.plusDays(i), Math.round(totals.wateringMillis[i] / 1000),
+                    totals.pumpStarts[i]));
+        }
+        return result;
+    }
+
+    // Deletes segments whose newest event is older than the retention; called on open and at every new segment.
+    public synchronized void evictExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        Iterator<Map.Entry<Path, Long>> unmapped = unmappedSegments.entrySet().iterator();
+        while (unmapped.hasNext()) {
+            Map.Entry<Path, Long> entry = unmapped.next();
+            if (entry.getValue() < cutoff) {
+                unmapped.remove();
+                try {
+                    Files.deleteIfExists(entry.getKey());
+                } catch (IOException e) {
+                    log.warn("Failed to delete expired history segment {}: {}", entry.getKey(), e.getMessage());
+                }
+            }
+        }
+        Segment current = current();
+        Iterator<Segment> it = segments.iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == current || segment.maxMillis >= cutoff) {
+                continue;
+            }
+            it.remove();
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                log.warn("Failed to delete expired history segment {}: {}", segment.file, e.getMessage());
+            }
+            log.debug("Evicted history segment {} with {} events", segment.file, segment.events);
+        }
+    }
+
+    public synchronized long getEventCount() {
+        long events = 0;
+        for (Segment segment : segments) {
+            events += segment.events;
+        }
+        return events;
+    }
+
+    // Bytes taken by chunks, i.e. the disk footprint of the sparse segment files.
+    public synchronized long getSizeBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += (long) segment.chunkCount * CHUNK_SIZE;
+        }
+        return bytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Appends what was recorded so far, then closes. Later records are dropped.
+    @Override
+    public void close() {
+        synchronized (queue) {
+            stopping = true;
+            queue.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSegments();
+    }
+
+    private synchronized void closeSegments() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Segment current = current();
+        if (current != null) {
+            current.map.force();
+        }
+        try {
+            dictionaryChannel.force(false);
+            dictionaryChannel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close device history dictionary {}: {}", directory, e.getMessage());
+        }
+    }
+
+    // Null if the queue is full or the history is closing; the caller holds the queue's monitor.
+    private PendingEvent claimSlot() {
+        if (stopping || queueTail - queueHead == queue.length) {
+            dropped.increment();
+            return null;
+        }
+        return queue[(int) (queueTail % queue.length)];
+    }
+
+    private void publishSlot() {
+        if (queueTail++ == queueHead) {
+            queue.notifyAll();
+        }
+    }
+
+    // Appends queued events in batches; exits once closing and drained.
+    private void runWriter() {
+        while (true) {
+            long head;
+            long tail;
+            synchronized (queue) {
+                while (queueHead == queueTail && !stopping) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the writer.
+                    }
+                }
+                if (queueHead == queueTail) {
+                    return;
+                }
+                head = queueHead;
+                tail = queueTail;
+            }
+            // Producers only write slots past the tail, so these can be read outside the queue's monitor.
+            for (long i = head; i < tail; i++) {
+                PendingEvent event = queue[(int) (i % queue.length)];
+                try {
+                    write(event);
+                } catch (RuntimeException e) {
+                    // A full disk must not stop the writer; the event is lost.
+                    log.warn("Failed to append event of device {} to the history: {}", event.deviceId, e.getMessage());
+                }
+                event.deviceId = null;
+                event.commandType = null;
+            }
+            synchronized (queue) {
+                queueHead = tail;
+                queue.notifyAll();
+            }
+        }
+    }
+
+    private Segment current() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    // Encodes the event into scratch and returns its length.
+    private int encode(PendingEvent event, int commandType, long deltaMillis) {
+        byte[] buf = scratch;
+        int length = putVarLong(buf, 1, (deltaMillis << 1) ^ (deltaMillis >> 63));
+        buf[0] = event.type;
+        if (event.type == TYPE_STATUS) {
+            length = putVarLong(buf, length, event.pumpMode);
+            buf[length++] = (byte) (event.pumpCycleOn ? 1 : 0);
+            length = putVarLong(buf, length, event.pumpDurationSeconds);
+            length = putVarLong(buf, length, event.pumpCycleOnSeconds);
+            length = putVarLong(buf, length, event.pumpCycleOffSeconds);
+        } else {
+            length = putVarLong(buf, length, commandType);
+            buf[length++] = (byte) event.commandStatus.ordinal();
+            length = putVarLong(buf, length, Math.max(0, event.latencyMillis));
+        }
+        return length;
+    }
+
+    private Segment newSegment(long millis) {
+        Segment previous = current();
+        if (previous != null) {
+            previous.map.force();
+        }
+        LocalDate day = LocalDate.ofInstant(Instant.ofEpochMilli(millis), zone);
+        Path file = directory.resolve(String.format("%s%010d-%d%s", SEGMENT_PREFIX, nextSegmentSeq++, day.toEpochDay(),
+                SEGMENT_SUFFIX));
+        try {
+            Segment segment = new Segment(file, map(file), dayEnd(day));
+            segments.add(segment);
+            evictExpired();
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create history segment " + file, e);
+        }
+    }
+
+    private long dayEnd(LocalDate day) {
+        return day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // The mapping stays valid after the channel is closed, so no file handle is held per segment.
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private int dictionaryId(String value) {
+        Integer id = dictionaryIds.get(value);
+        if (id != null) {
+            return id;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(2 + utf8.length).putShort((short) utf8.length).put(utf8).flip();
+        try {
+            while (entry.hasRemaining()) {
+                dictionaryChannel.write(entry);
+            }
+            // Durable before any segment refers to the id: the OS may write mapped segment pages back at any time,
+            // and a segment outliving its dictionary entry would hand the id to another device after a crash.
+            dictionaryChannel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write device history dictionary " + directory, e);
+        }
+        id = dictionary.size();
+        dictionary.add(value);
+        dictionaryIds.put(value, id);
+        return id;
+    }
+
+    private FileChannel openDictionary() throws IOException {
+        Path file = directory.resolve(DICTIONARY_FILE);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (entries.remaining() >= 2) {
+            int length = entries.getShort(entries.position());
+            if (length < 0 || length > entries.remaining() - 2) {
+                break;
+            }
+            entries.getShort();
+            byte[] utf8 = new byte[length];
+            entries.get(utf8);
+            String value = new String(utf8, StandardCharsets.UTF_8);
+            dictionaryIds.put(value, dictionary.size());
+            dictionary.add(value);
+        }
+        // Drops an entry torn by a crash.
+        channel.truncate(entries.position());
+        channel.position(entries.position());
+        return channel;
+    }
+
+    private void openSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Zero-padded sequence numbers sort by name.
+        files.sort(null);
+        Event event = new Event();
+        // Highest dictionary id the segments refer to.
+        int[] maxId = {-1};
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String[] parts = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()).split("-");
+            long seq = Long.parseLong(parts[0]);
+            nextSegmentSeq = Math.max(nextSegmentSeq, seq + 1);
+            long dayEnd = dayEnd(LocalDate.ofEpochDay(Long.parseLong(parts[1])));
+            if (Files.size(file) != capacity) {
+                log.warn("Skipping history segment {} mapped at a different size than the configured {} bytes; "
+                        + "it is deleted with the rest of its day", file, capacity);
+                unmappedSegments.put(file, dayEnd);
+                continue;
+            }
+            Segment segment = new Segment(file, map(file), dayEnd);
+            for (int chunk = 0; chunk < capacity / CHUNK_SIZE; chunk++) {
+                int start = chunk * CHUNK_SIZE;
+                int device = segment.map.getInt(start) - 1;
+                if (device < 0) {
+                    break;
+                }
+                maxId[0] = Math.max(maxId[0], device);
+                DeviceChunks chunks = segment.startChunk(device, segment.map.getLong(start + 4));
+                ChunkRange range = new ChunkRange(segment.map, new int[]{chunk}, start + CHUNK_SIZE);
+                event.millis = chunks.lastMillis;
+                chunks.position = scan(range, event, Long.MIN_VALUE, Long.MAX_VALUE, () -> {
+                    segment.indexEvent(chunks, event.millis);
+                    if (event.type == TYPE_COMMAND) {
+                        maxId[0] = Math.max(maxId[0], event.commandType);
+                    }
+                });
+            }
+            // Clears what torn appends left behind, which the next append would otherwise not fully overwrite.
+            for (DeviceChunks chunks : segment.devices.values()) {
+                for (int i = chunks.position; i < chunks.chunkEnd(); i++) {
+                    segment.map.put(i, (byte) 0);
+                }
+            }
+            segments.add(segment);
+        }
+        reserveLostIds(maxId[0]);
+    }
+
+    // Segments written by a store without the dictionary force may refer to ids whose entries a crash lost. Such ids
+    // get placeholder entries, so they are never handed to another device or command type.
+    private void reserveLostIds(int maxId) {
+        if (maxId < dictionary.size()) {
+            return;
+        }
+        log.warn("Device history {} refers to {} dictionary ids lost in a crash; their events are kept under placeholders",
+                directory, maxId + 1 - dictionary.size());
+        while (dictionary.size() <= maxId) {
+            dictionaryId("?lost-" + dictionary.size());
+        }
+    }
+
+    // The device's chunks overlapping [fromMillis, toMillis), bounded by what was appended so far.
+    private synchronized List<ChunkRange> snapshot(String deviceId, long fromMillis, long toMillis) {
+        Integer device = dictionaryIds.get(deviceId);
+        if (device == null) {
+            return List.of();
+        }
+        List<ChunkRange> ranges = new ArrayList<>();
+        for (Segment segment : segments) {
+            DeviceChunks chunks = segment.devices.get(device);
+            if (chunks == null || chunks.maxMillis < fromMillis || chunks.minMillis >= toMillis) {
+                continue;
+            }
+            int[] selected = new int[chunks.count];
+            int count = 0;
+            for (int i = 0; i < chunks.count; i++) {
+                int chunk = chunks.chunks[i];
+                if (segment.chunkMax[chunk] >= fromMillis && segment.chunkMin[chunk] < toMillis) {
+                    selected[count++] = chunk;
+                }
+            }
+            if (count > 0) {
+                ranges.add(new ChunkRange(segment.map, Arrays.copyOf(selected, count), chunks.position));
+            }
+        }
+        return ranges;
+    }
+
+    // Decodes the range's chunks, calling onEvent with each event within [fromMillis, toMillis) loaded into event.
+    // Returns the position after the last event decoded.
+    private static int scan(ChunkRange range, Event event, long fromMillis, long toMillis, Runnable onEvent) {
+        ByteBuffer map = range.map;
+        int position = 0;
+        for (int chunk : range.chunks) {
+            int start = chunk * CHUNK_SIZE;
+            int end = Math.min(start + CHUNK_SIZE, range.limit);
+            long millis = map.getLong(start + 4);
+            position = start + CHUNK_HEADER_SIZE;
+            while (position < end) {
+                byte type = map.get(position);
+                if (type != TYPE_STATUS && type != TYPE_COMMAND) {
+                    break;
+                }
+                position = readVarLong(map, position + 1, event);
+                millis += (event.varLong >>> 1) ^ -(event.varLong & 1);
+                event.type = type;
+                event.millis = millis;
+                if (type == TYPE_STATUS) {
+                    position = readVarLong(map, position, event);
+                    event.pumpMode = (int) event.varLong;
+                    event.pumpCycleOn = map.get(position++) != 0;
+                    position = readVarLong(map, position, event);
+                    event.pumpDurationSeconds = (int) event.varLong;
+                    position = readVarLong(map, position, event);
+                    event.pumpCycleOnSeconds = (int) event.varLong;
+                    position = readVarLong(map, position, event);
+                    event.pumpCycleOffSeconds = (int) event.varLong;
+                } else {
+                    position = readVarLong(map, position, event);
+                    event.commandType = (int) event.varLong;
+                    event.commandStatus = map.get(position++);
+                    position = readVarLong(map, position, event);
+                    event.latencyMillis = event.varLong;
+                }
+                if (millis >= fromMillis && millis < toMillis) {
+                    onEvent.run();
+                }
+            }
+        }
+        return position;
+    }
+
+    private LetPotDeviceEvent toDeviceEvent(String deviceId, Event event) {
+        if (event.type == TYPE_STATUS) {
+            return LetPotDeviceEvent.status(deviceId, event.millis, event.pumpMode, event.pumpCycleOn,
+                    event.pumpDurationSeconds, event.pumpCycleOnSeconds, event.pumpCycleOffSeconds);
+        }
+        String commandType;
+        synchronized (this) {
+            commandType = dictionary.get(event.commandType);
+        }
+        return LetPotDeviceEvent.command(deviceId, event.millis, commandType, COMMAND_STATUSES[event.commandStatus],
+                event.latencyMillis);
+    }
+
+    private static int putVarLong(byte[] buf, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[offset++] = (byte) value;
+        return offset;
+    }
+
+    // Leaves the value in event.varLong, so decoding allocates nothing; returns the position after it.
+    private static int readVarLong(ByteBuffer map, int position, Event event) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = map.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        event.varLong = value;
+        return position;
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final MappedByteBuffer map;
+        private final long dayEndMillis;
+        private final Map<Integer, DeviceChunks> devices = new HashMap<>();
+        private long[] chunkMin = new long[64];
+        private long[] chunkMax = new long[64];
+        private int chunkCount;
+        private long maxMillis = Long.MIN_VALUE;
+        private long events;
+
+        Segment(Path file, MappedByteBuffer map, long dayEndMillis) {
+            this.file = file;
+            this.map = map;
+            this.dayEndMillis = dayEndMillis;
+        }
+
+        // Claims the next chunk for the device; the device is written after the timestamp so a torn header is unused.
+        DeviceChunks startChunk(int device, long millis) {
+            int chunk = chunkCount++;
+            if (chunk == chunkMin.length) {
+                chunkMin = Arrays.copyOf(chunkMin, chunk * 2);
+                chunkMax = Arrays.copyOf(chunkMax, chunk * 2);
+            }
+            chunkMin[chunk] = millis;
+            chunkMax[chunk] = millis;
+            int start = chunk * CHUNK_SIZE;
+            map.putLong(start + 4, millis);
+            map.putInt(start, device + 1);
+            DeviceChunks chunks = devices.computeIfAbsent(device, id -> new DeviceChunks());
+            chunks.add(chunk);
+            chunks.position = start + CHUNK_HEADER_SIZE;
+            chunks.lastMillis = millis;
+            return chunks;
+        }
+
+        void indexEvent(DeviceChunks chunks, long millis) {
+            int chunk = chunks.chunks[chunks.count - 1];
+            chunkMin[chunk] = Math.min(chunkMin[chunk], millis);
+            chunkMax[chunk] = Math.max(chunkMax[chunk], millis);
+            chunks.minMillis = Math.min(chunks.minMillis, millis);
+            chunks.maxMillis = Math.max(chunks.maxMillis, millis);
+            chunks.lastMillis = millis;
+            maxMillis = Math.max(maxMillis, millis);
+            events++;
+        }
+    }
+
+    // One device's chunks within a segment, oldest first; appends go to the last one.
+    private static final class DeviceChunks {
+        private int[] chunks = new int[4];
+        private int count;
+        private int position;
+        private long lastMillis;
+        private long minMillis = Long.MAX_VALUE;
+        private long maxMillis = Long.MIN_VALUE;
+
+        void add(int chunk) {
+            if (count == chunks.length) {
+                chunks = Arrays.copyOf(chunks, count * 2);
+            }
+            chunks[count++] = chunk;
+        }
+
+        int chunkEnd() {
+            return (chunks[count - 1] + 1) * CHUNK_SIZE;
+        }
+    }
+
+    private static final class ChunkRange {
+        private final ByteBuffer map;
+        private final int[] chunks;
+        // End of what was appended to the device's last chunk when the range was taken.
+        private final int limit;
+
+        ChunkRange(ByteBuffer map, int[] chunks, int limit) {
+            this.map = map;
+            this.chunks = chunks;
+            this.limit = limit;
+        }
+    }
+
+    // An event on its way into a segment, as a reusable slot of the write queue.
+    private static final class PendingEvent {
+        private byte type;
+        private String deviceId;
+        private long millis;
+        private int pumpMode;
+        private boolean pumpCycleOn;
+        private int pumpDurationSeconds;
+        private int pumpCycleOnSeconds;
+        private int pumpCycleOffSeconds;
+        private String commandType;
+        private LetPotCommandStatus commandStatus;
+        private long latencyMillis;
+
+        void setStatus(String deviceId, long millis, int pumpMode, boolean pumpCycleOn, int pumpDurationSeconds,
+                       int pumpCycleOnSeconds, int pumpCycleOffSeconds) {
+            this.type = TYPE_STATUS;
+            this.deviceId = deviceId;
+            this.millis = millis;
+            this.pumpMode = pumpMode;
+            this.pumpCycleOn = pumpCycleOn;
+            this.pumpDurationSeconds = pumpDurationSeconds;
+            this.pumpCycleOnSeconds = pumpCycleOnSeconds;
+            this.pumpCycleOffSeconds = pumpCycleOffSeconds;
+        }
+
+        void setCommand(String deviceId, long millis, String commandType, LetPotCommandStatus commandStatus,
+                        long latencyMillis) {
+            this.type = TYPE_COMMAND;
+            this.deviceId = deviceId;
+            this.millis = millis;
+            this.commandType = commandType;
+            this.commandStatus = commandStatus;
+            this.latencyMillis = latencyMillis;
+        }
+
+        void set(LetPotDeviceEvent event) {
+            if (event.getType() == LetPotDeviceEvent.Type.STATUS) {
+                setStatus(event.getDeviceId(), event.getTimestampMillis(), event.getPumpMode(), event.isPumpCycleOn(),
+                        event.getPumpDurationSeconds(), event.getPumpCycleOnSeconds(), event.getPumpCycleOffSeconds());
+            } else {
+                setCommand(event.getDeviceId(), event.getTimestampMillis(), event.getCommandType(),
+                        event.getCommandStatus(), event.getLatencyMillis());
+            }
+        }
+    }
+
+    // One decoded event, reused across a scan.
+    private static final class Event {
+        private long varLong;
+        private byte type;
+        private long millis;
+        private int pumpMode;
+        private boolean pumpCycleOn;
+        private int pumpDurationSeconds;
+        private int pumpCycleOnSeconds;
+        private int pumpCycleOffSeconds;
+        private int commandType;
+        private int commandStatus;
+        private long latencyMillis;
+    }
+
+    // Folds status reports, oldest first, into per-day watering time and pump starts.
+    private static final class WateringTotals {
+        private final long[] dayStarts;
+        private final long endMillis;
+        private final double[] wateringMillis;
+        private final int[] pumpStarts;
+        private boolean running;
+        private long runningSince;
+        private long runningUntil;
+        private double dutyCycle;
+
+        WateringTotals(long[] dayStarts, long endMillis) {
+            this.dayStarts = dayStarts;
+            this.endMillis = endMillis;
+            this.wateringMillis = new double[dayStarts.length - 1];
+            this.pumpStarts = new int[dayStarts.length - 1];
+        }
+
+        void accept(Event event) {
+            if (event.type != TYPE_STATUS) {
+                return;
+            }
+            long millis = event.millis;
+            if (running && runningUntil <= millis) {
+                stop(runningUntil);
+            }
+            if (event.pumpMode != 1) {
+                if (running) {
+                    stop(millis);
+                }
+                return;
+            }
+            // Reports repeating the state of a running pump do not restart it.
+            if (running) {
+                return;
+            }
+            running = true;
+            runningSince = millis;
+            runningUntil = event.pumpDurationSeconds > 0 ? millis + event.pumpDurationSeconds * 1000L : Long.MAX_VALUE;
+            int cycle = event.pumpCycleOnSeconds + event.pumpCycleOffSeconds;
+            dutyCycle = event.pumpCycleOn && cycle > 0 ? (double) event.pumpCycleOnSeconds / cycle : 1;
+            int day = dayOf(millis);
+            if (day >= 0 && day < pumpStarts.length) {
+                pumpStarts[day]++;
+            }
+        }
+
+        void finish() {
+            if (running) {
+                stop(Math.min(runningUntil, endMillis));
+            }
+        }
+
+        private void stop(long millis) {
+            running = false;
+            long from = Math.max(runningSince, dayStarts[0]);
+            long to = Math.min(millis, dayStarts[dayStarts.length - 1]);
+            for (int day = Math.max(0, dayOf(from)); day < wateringMillis.length && dayStarts[day] < to; day++) {
+                long overlap = Math.min(to, dayStarts[day + 1]) - Math.max(from, dayStarts[day]);
+                if (overlap > 0) {
+                    wateringMillis[day] += overlap * dutyCycle;
+                }
+            }
+        }
+
+        // Index of the day holding millis, or -1 if it is before the first day.
+        private int dayOf(long millis) {
+            int index = Arrays.binarySearch(dayStarts, millis);
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+}
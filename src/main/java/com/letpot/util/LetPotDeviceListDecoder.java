@@ -0,0 +1,175 @@
+package com.letpot.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.letpot.dto.LetPotDeviceDto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Streaming alternative to mapping a device list response onto {@code LetPotDeviceListResponseDto}: devices
+ * are read one at a time with a {@link JsonParser}, so memory stays flat however large the fleet. Values that
+ * repeat across devices (type, status, model, firmware version) are interned, so retained device lists share
+ * one copy of each.
+ */
+public class LetPotDeviceListDecoder {
+
+    private final JsonFactory jsonFactory;
+    private final LetPotStringInterner interner;
+
+    public LetPotDeviceListDecoder() {
+        this(LetPotHttpTransport.objectMapper().getFactory(), new LetPotStringInterner(1024));
+    }
+
+    public LetPotDeviceListDecoder(JsonFactory jsonFactory, LetPotStringInterner interner) {
+        this.jsonFactory = jsonFactory;
+        this.interner = interner;
+    }
+
+    // Hands each device to the consumer as it is parsed and returns the response's ok flag. Closes the stream.
+    public boolean decode(InputStream in, Consumer<LetPotDeviceDto> consumer) throws IOException {
+        try (DeviceIterator devices = iterate(in)) {
+            while (devices.hasNext()) {
+                consumer.accept(devices.next());
+            }
+            return devices.isOk();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The iterator owns the stream; close it when stopping early.
+    public DeviceIterator iterate(InputStream in) throws IOException {
+        JsonParser parser = jsonFactory.createParser(in);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            parser.close();
+            throw new IOException("Device list response is not a JSON object");
+        }
+        return new DeviceIterator(parser);
+    }
+
+    public final class DeviceIterator implements Iterator<LetPotDeviceDto>, Closeable {
+
+        private final JsonParser parser;
+        private LetPotDeviceDto next;
+        private boolean inData;
+        private boolean finished;
+        private boolean ok;
+
+        private DeviceIterator(JsonParser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                try {
+                    next = advance();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public LetPotDeviceDto next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            LetPotDeviceDto device = next;
+            next = null;
+            return device;
+        }
+
+        // The ok flag may follow the data array, so this is only meaningful once hasNext() returned false.
+        public boolean isOk() {
+            return ok;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finished = true;
+            parser.close();
+        }
+
+        private LetPotDeviceDto advance() throws IOException {
+            while (true) {
+                JsonToken token = parser.nextToken();
+                if (inData) {
+                    if (token == JsonToken.START_OBJECT) {
+                        return readDevice();
+                    }
+                    if (token == JsonToken.END_ARRAY) {
+                        inData = false;
+                    } else {
+                        parser.skipChildren();
+                    }
+                    continue;
+                }
+                if (token == null || token == JsonToken.END_OBJECT) {
+                    close();
+                    return null;
+                }
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("ok".equals(field)) {
+                    ok = value == JsonToken.VALUE_TRUE;
+                } else if ("data".equals(field) && value == JsonToken.START_ARRAY) {
+                    inData = true;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        private LetPotDeviceDto readDevice() throws IOException {
+            LetPotDeviceDto device = new LetPotDeviceDto();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "deviceId":
+                        device.setDeviceId(text());
+                        break;
+                    case "deviceName":
+                        device.setDeviceName(text());
+                        break;
+                    case "deviceType":
+                        device.setDeviceType(internedText());
+                        break;
+                    case "deviceStatus":
+                        device.setDeviceStatus(internedText());
+                        break;
+                    case "deviceModel":
+                        device.setDeviceModel(internedText());
+                        break;
+                    case "firmwareVersion":
+                        device.setFirmwareVersion(internedText());
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return device;
+        }
+
+        private String text() throws IOException {
+            return parser.currentToken() == JsonToken.VALUE_NULL ? null : parser.getText();
+        }
+
+        private String internedText() throws IOException {
+            if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                return text();
+            }
+            return interner.intern(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.letpot.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class LetPotExecutors {
+
+    // Bounds for the platform-thread fallback before Java 21; override with -Dletpot.io.maxThreads and
+    // -Dletpot.io.queueCapacity, which also size sharedBlockingIoExecutor().
+    public static final int DEFAULT_MAX_IO_THREADS = Integer.getInteger("letpot.io.maxThreads", 64);
+    public static final int DEFAULT_IO_QUEUE_CAPACITY = Integer.getInteger("letpot.io.queueCapacity", 10_000);
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ScheduledExecutorService SHARED_SCHEDULER =
+            Executors.newScheduledThreadPool(2, r -> {
+                Thread thread = new Thread(r, "letpot-scheduler-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    // Looked up reflectively so the library still builds and runs on Java 17.
+    private static final MethodHandle NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    private LetPotExecutors() {
+    }
+
+    // Daemon scheduler for short background tasks (cache refresh, token refresh) shared by all services,
+    // so per-account components do not each hold a thread.
+    public static ScheduledExecutorService sharedScheduler() {
+        return SHARED_SCHEDULER;
+    }
+
+    // Runs the blocking work (token refresh, device list reload) that tasks on sharedScheduler() hand off, so
+    // a slow HTTP call never holds up the scheduler's timers for every other account.
+    public static ExecutorService sharedBlockingIoExecutor() {
+        return SharedIo.EXECUTOR;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    // One new virtual thread per task; blocking REST and MQTT calls park the virtual thread, not a carrier.
+    public static ExecutorService newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    // Virtual threads where the runtime has them, otherwise a bounded pool of daemon platform threads sized by
+    // DEFAULT_MAX_IO_THREADS and DEFAULT_IO_QUEUE_CAPACITY.
+    public static ExecutorService newBlockingIoExecutor(String threadNamePrefix) {
+        return newBlockingIoExecutor(threadNamePrefix, DEFAULT_MAX_IO_THREADS, DEFAULT_IO_QUEUE_CAPACITY);
+    }
+
+    // Before Java 21: at most maxThreads platform threads, idle ones exit after a minute, and tasks beyond
+    // queueCapacity waiting ones are rejected with RejectedExecutionException rather than growing the pool.
+    public static ExecutorService newBlockingIoExecutor(String threadNamePrefix, int maxThreads, int queueCapacity) {
+        if (isVirtualThreadSupported()) {
+            return newVirtualThreadExecutor();
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, threadNamePrefix + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Holder, so the executor is only created once something needs it.
+    private static final class SharedIo {
+        private static final ExecutorService EXECUTOR = newBlockingIoExecutor("letpot-io-");
+    }
+
+    private static MethodHandle findVirtualThreadExecutorFactory() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
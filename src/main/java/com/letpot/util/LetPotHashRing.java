@@ -0,0 +1,100 @@
+package com.letpot.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring mapping keys (account emails) to worker nodes. Each node is placed at a number of
+ * virtual points so keys spread evenly, and adding or removing a node only moves the keys between the changed node's
+ * points and their ring neighbours, about 1/n of all keys, instead of nearly all of them as with modulo hashing.
+ * Rings built from the same nodes are identical on every worker, so they agree on each key's owner.
+ */
+public final class LetPotHashRing {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Set<String> nodes;
+    // Sorted ring points and the node owning each.
+    private final long[] points;
+    private final String[] owners;
+
+    public LetPotHashRing(Collection<String> nodes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        List<Point> ring = new ArrayList<>(this.nodes.size() * virtualNodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.add(new Point(hash(node + '#' + i), node));
+            }
+        }
+        // Ties broken by node id so every worker builds the same ring.
+        ring.sort(Comparator.comparingLong((Point point) -> point.hash).thenComparing(point -> point.node));
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            points[i] = ring.get(i).hash;
+            owners[i] = ring.get(i).node;
+        }
+    }
+
+    // The node owning the key: the first ring point at or after the key's hash, wrapping around. Null if empty.
+    public String ownerOf(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        long hash = hash(key);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    // 64-bit FNV-1a over the UTF-16 chars, finished with the murmur3 mixer so similar keys land far apart.
+    static long hash(String key) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Point {
+        private final long hash;
+        private final String node;
+
+        private Point(long hash, String node) {
+            this.hash = hash;
+            this.node = node;
+        }
+    }
+}
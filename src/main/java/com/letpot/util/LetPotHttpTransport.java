@@ -0,0 +1,162 @@
+package com.letpot.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.letpot.client.LetPotApiClient;
+import com.letpot.dto.LetPotAuthenticationResponseDto;
+import com.letpot.dto.LetPotDeviceListResponseDto;
+import com.letpot.metrics.LetPotMetrics;
+import com.letpot.metrics.LetPotMetricsInterceptor;
+import com.letpot.model.LetPotHttpConfig;
+import lombok.Value;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import retrofit2.Retrofit;
+import retrofit2.converter.jackson.JacksonConverterFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One tuned OkHttp stack (connection pool, dispatcher, timeouts) plus a shared ObjectMapper, from which
+ * all {@link LetPotApiClient}s are created. Clients for the same base URL and metrics are the same instance.
+ * Gzip needs no setup: OkHttp requests it and decompresses transparently unless a caller sets Accept-Encoding.
+ */
+public class LetPotHttpTransport {
+
+    private static final ObjectMapper OBJECT_MAPPER = createObjectMapper();
+    private static volatile LetPotHttpTransport shared;
+
+    private final LetPotHttpConfig config;
+    private final OkHttpClient httpClient;
+    private final ExecutorService dispatcherExecutor;
+    // Null unless the config enables it.
+    private final LetPotResilience resilience;
+    private final Map<ClientKey, LetPotApiClient> clients = new ConcurrentHashMap<>();
+
+    public LetPotHttpTransport(LetPotHttpConfig config) {
+        this.config = config;
+        AtomicInteger threadCounter = new AtomicInteger();
+        // Same shape as OkHttp's default executor, but with daemon threads so idle workers never hold up exit.
+        // It runs only enqueue()d calls, which the dispatcher never has more than maxRequests of at a time.
+        this.dispatcherExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "letpot-http-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        Dispatcher dispatcher = new Dispatcher(dispatcherExecutor);
+        dispatcher.setMaxRequests(config.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+
+        this.resilience = config.getResilience() == null ? null : new LetPotResilience(config.getResilience(), "LetPot API");
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(),
+                        config.getKeepAlive().toMillis(), TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .protocols(config.isHttp2Enabled()
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(config.getConnectTimeout())
+                .readTimeout(config.getReadTimeout())
+                .writeTimeout(config.getWriteTimeout())
+                .callTimeout(config.getCallTimeout());
+        if (resilience != null) {
+            // Added first, so the metrics interceptor inside it times each attempt.
+            builder.addInterceptor(new LetPotResilienceInterceptor(resilience));
+        }
+        // After resilience, so a call backing off between retries does not hold a slot.
+        builder.addInterceptor(new LetPotConcurrencyLimitInterceptor(config.getMaxRequests(), config.getCallTimeout()));
+        this.httpClient = builder.build();
+    }
+
+    // Transport with the default LetPotHttpConfig, shared by ApiClientFactory and everything built on it.
+    public static LetPotHttpTransport shared() {
+        LetPotHttpTransport transport = shared;
+        if (transport == null) {
+            synchronized (LetPotHttpTransport.class) {
+                transport = shared;
+                if (transport == null) {
+                    transport = new LetPotHttpTransport(new LetPotHttpConfig());
+                    shared = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    // Thread-safe once configured; use it for LetPot JSON outside Retrofit too.
+    public static ObjectMapper objectMapper() {
+        return OBJECT_MAPPER;
+    }
+
+    public LetPotApiClient createApiClient(LetPotMetrics metrics) {
+        return createApiClient(config.getBaseUrl(), metrics);
+    }
+
+    public LetPotApiClient createApiClient(String baseUrl, LetPotMetrics metrics) {
+        return clients.computeIfAbsent(new ClientKey(baseUrl, metrics), this::buildApiClient);
+    }
+
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public LetPotHttpConfig getConfig() {
+        return config;
+    }
+
+    // Null unless the config enables resilience.
+    public LetPotResilience getResilience() {
+        return resilience;
+    }
+
+    // Stops the dispatcher threads and drops pooled connections; clients from this transport stop working.
+    public void close() {
+        clients.clear();
+        dispatcherExecutor.shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    private LetPotApiClient buildApiClient(ClientKey key) {
+        // newBuilder() shares the connection pool and dispatcher; only the interceptor list differs.
+        OkHttpClient client = httpClient;
+        if (key.getMetrics() != LetPotMetrics.noop()) {
+            client = httpClient.newBuilder().addInterceptor(new LetPotMetricsInterceptor(key.getMetrics())).build();
+        }
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(key.getBaseUrl())
+                .client(client)
+                .addConverterFactory(JacksonConverterFactory.create(OBJECT_MAPPER))
+                // Parse the interface annotations now rather than on each method's first call.
+                .validateEagerly(true)
+                .build();
+        return retrofit.create(LetPotApiClient.class);
+    }
+
+    private static ObjectMapper createObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        // Build and cache the DTO deserializers up front, so the first login does not pay for introspection.
+        objectMapper.readerFor(LetPotAuthenticationResponseDto.class);
+        objectMapper.readerFor(LetPotDeviceListResponseDto.class);
+        objectMapper.writerFor(Map.class);
+        return objectMapper;
+    }
+
+    @Value
+    private static class ClientKey {
+        String baseUrl;
+        // Compared by identity, as LetPotMetrics implementations do not override equals.
+        LetPotMetrics metrics;
+    }
+}
@@ -0,0 +1,108 @@
+package com.letpot.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram in the style of HdrHistogram: each power of two is split into 32 linear
+ * sub-buckets, so recorded values keep roughly two significant digits (~3% error) across the full range.
+ * Recording is a bucket increment and two {@link LongAdder} updates, plus a CAS loop only when it raises the
+ * maximum; it never locks or allocates.
+ */
+public final class LetPotLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalNanos.add(value);
+        updateMax(value);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public double getMean(TimeUnit unit) {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count / unit.toNanos(1);
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100), e.g. getPercentile(99.9, MILLISECONDS).
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return unit.convert(Math.min(upperBoundOf(i), maxNanos.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+                getCount(),
+                getPercentile(50, TimeUnit.MICROSECONDS) / 1000.0,
+                getPercentile(99, TimeUnit.MICROSECONDS) / 1000.0,
+                getPercentile(99.9, TimeUnit.MICROSECONDS) / 1000.0,
+                getMax(TimeUnit.MICROSECONDS) / 1000.0);
+    }
+
+    private void updateMax(long value) {
+        long current = maxNanos.get();
+        while (value > current && !maxNanos.compareAndSet(current, value)) {
+            current = maxNanos.get();
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the top SUB_BUCKET_BITS + 1 bits; the leading one selects the power of two.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + (shift << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) >>> SUB_BUCKET_BITS;
+        long top = ((index - SUB_BUCKETS) & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        long upper = ((top + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
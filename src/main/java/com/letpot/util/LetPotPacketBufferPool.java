@@ -0,0 +1,45 @@
+package com.letpot.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Free lists of exact-length packet buffers. MqttMessage takes its payload array as-is, so buffers
+ * are keyed by encoded packet length and must only be released once the publish has been acked.
+ */
+public final class LetPotPacketBufferPool {
+
+    private final ArrayDeque<byte[]>[] freeLists;
+    private final int maxPerLength;
+
+    @SuppressWarnings("unchecked")
+    public LetPotPacketBufferPool(int maxPerLength) {
+        this.freeLists = new ArrayDeque[LetPotPacketFramer.MAX_ENCODED_PACKET_LENGTH + 1];
+        this.maxPerLength = maxPerLength;
+    }
+
+    public byte[] borrow(int length) {
+        synchronized (this) {
+            ArrayDeque<byte[]> free = freeLists[length];
+            if (free != null && !free.isEmpty()) {
+                return free.pop();
+            }
+        }
+        return new byte[length];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length >= freeLists.length) {
+            return;
+        }
+        synchronized (this) {
+            ArrayDeque<byte[]> free = freeLists[buffer.length];
+            if (free == null) {
+                free = new ArrayDeque<>();
+                freeLists[buffer.length] = free;
+            }
+            if (free.size() < maxPerLength) {
+                free.push(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.letpot.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a device command into LetPot MQTT packets and writes them as lowercase hex ASCII,
+ * without intermediate boxing or string building. Output is byte-identical to the wire format
+ * expected by the device (see python-letpot's {@code _generate_message_packets}): every packet,
+ * the last included, carries at most {@link #MAX_PAYLOAD_PER_PACKET} payload bytes.
+ */
+public final class LetPotPacketFramer {
+
+    public static final int MTU = 128;
+    public static final int MAX_PAYLOAD_PER_PACKET = MTU - 6;
+    public static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+    public static final int MAX_ENCODED_PACKET_LENGTH = MTU * 2;
+
+    private static final int MAIN_TYPE = 1;
+    private static final int SUB_TYPE = 19;
+    private static final int TYPE_BYTE = (SUB_TYPE << 2) | MAIN_TYPE;
+    private static final int FLAG_MORE_PACKETS = 16;
+    private static final int FIRST_HEADER_SIZE = 6;
+    private static final int LAST_HEADER_SIZE = 4;
+
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private LetPotPacketFramer() {
+    }
+
+    /**
+     * Number of packets python-letpot splits the message into; every packet but the last is full.
+     */
+    public static int packetCount(int messageLength) {
+        checkLength(messageLength);
+        return (messageLength + MAX_PAYLOAD_PER_PACKET - 1) / MAX_PAYLOAD_PER_PACKET;
+    }
+
+    /**
+     * Number of hex ASCII bytes all packets of the message take on the wire.
+     */
+    public static int encodedMessageLength(int messageLength) {
+        int numPackets = packetCount(messageLength);
+        return (messageLength + (numPackets - 1) * FIRST_HEADER_SIZE + LAST_HEADER_SIZE) * 2;
+    }
+
+    /**
+     * Number of hex ASCII bytes {@link #encodePacket} writes for the given packet.
+     */
+    public static int encodedPacketLength(int messageLength, int packetIndex) {
+        int numPackets = packetCount(messageLength);
+        int payloadLength = payloadLength(messageLength, numPackets, packetIndex);
+        int headerSize = packetIndex < numPackets - 1 ? FIRST_HEADER_SIZE : LAST_HEADER_SIZE;
+        return (headerSize + payloadLength) * 2;
+    }
+
+    /**
+     * Encodes one packet of {@code message} into {@code dst} at {@code dstOffset} and returns the
+     * number of bytes written. The message id is truncated to a single byte, as on the wire.
+     */
+    public static int encodePacket(byte[] message, int messageLength, int packetIndex, int messageId,
+                                   byte[] dst, int dstOffset) {
+        int numPackets = packetCount(messageLength);
+        if (packetIndex < 0 || packetIndex >= numPackets) {
+            throw new IllegalArgumentException("Packet index " + packetIndex + " out of range for " + numPackets + " packets");
+        }
+        int start = packetIndex * MAX_PAYLOAD_PER_PACKET;
+        int payloadLength = payloadLength(messageLength, numPackets, packetIndex);
+
+        int pos = dstOffset;
+        pos = writeHex(TYPE_BYTE, dst, pos);
+        if (packetIndex < numPackets - 1) {
+            pos = writeHex(FLAG_MORE_PACKETS, dst, pos);
+            pos = writeHex(messageId, dst, pos);
+            pos = writeHex(payloadLength + 4, dst, pos);
+            pos = writeHex(messageLength & 0xFF, dst, pos);
+            pos = writeHex(messageLength >>> 8, dst, pos);
+        } else {
+            pos = writeHex(0, dst, pos);
+            pos = writeHex(messageId, dst, pos);
+            pos = writeHex(payloadLength, dst, pos);
+        }
+        for (int i = start; i < start + payloadLength; i++) {
+            pos = writeHex(message[i], dst, pos);
+        }
+        return pos - dstOffset;
+    }
+
+    /**
+     * Same as {@link #encodePacket(byte[], int, int, int, byte[], int)} but writes into a pooled,
+     * heap-backed buffer and advances its position.
+     */
+    public static int encodePacket(byte[] message, int messageLength, int packetIndex, int messageId, ByteBuffer dst) {
+        if (!dst.hasArray()) {
+            throw new IllegalArgumentException("Packet buffer must be heap-backed");
+        }
+        int written = encodePacket(message, messageLength, packetIndex, messageId,
+                dst.array(), dst.arrayOffset() + dst.position());
+        dst.position(dst.position() + written);
+        return written;
+    }
+
+    private static int payloadLength(int messageLength, int numPackets, int packetIndex) {
+        return packetIndex < numPackets - 1 ? MAX_PAYLOAD_PER_PACKET : messageLength - packetIndex * MAX_PAYLOAD_PER_PACKET;
+    }
+
+    private static int writeHex(int value, byte[] dst, int pos) {
+        dst[pos] = HEX_DIGITS[(value >>> 4) & 0x0F];
+        dst[pos + 1] = HEX_DIGITS[value & 0x0F];
+        return pos + 2;
+    }
+
+    private static void checkLength(int messageLength) {
+        if (messageLength <= 0 || messageLength > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Message length must be between 1 and " + MAX_MESSAGE_LENGTH + ": " + messageLength);
+        }
+    }
+}
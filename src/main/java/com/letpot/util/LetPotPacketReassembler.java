@@ -0,0 +1,132 @@
+package com.letpot.util;
+
+import java.util.Arrays;
+
+/**
+ * Inverse of {@link LetPotPacketFramer}: decodes hex ASCII packets and stitches multi-packet frames back
+ * into one message. Not thread-safe; keep one instance per device and feed it from a single thread.
+ * The message buffer is reused across messages, so copy out anything that must outlive the next packet.
+ */
+public final class LetPotPacketReassembler {
+
+    private static final int FLAG_MORE_PACKETS = 16;
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private byte[] message = new byte[LetPotPacketFramer.MTU];
+    private int length;
+    private int expectedLength = -1;
+    private int messageId;
+    private boolean complete;
+
+    /**
+     * Feeds one packet. Returns true once a full message is available via {@link #message()} and
+     * {@link #length()}; malformed packets discard any partial message and return false.
+     */
+    public boolean accept(byte[] hex, int offset, int hexLength) {
+        if (complete) {
+            length = 0;
+            expectedLength = -1;
+            complete = false;
+        }
+        if (hexLength < 8 || (hexLength & 1) != 0) {
+            return reset();
+        }
+        int flag = decodeByte(hex, offset + 2);
+        int packetMessageId = decodeByte(hex, offset + 4);
+        int declaredLength = decodeByte(hex, offset + 6);
+        if (flag < 0 || packetMessageId < 0 || declaredLength < 0) {
+            return reset();
+        }
+
+        int payloadOffset;
+        int payloadLength;
+        if (flag == FLAG_MORE_PACKETS) {
+            if (hexLength < 12) {
+                return reset();
+            }
+            int total = decodeByte(hex, offset + 8) | (decodeByte(hex, offset + 10) << 8);
+            if (total <= 0 || (expectedLength >= 0 && total != expectedLength)) {
+                return reset();
+            }
+            expectedLength = total;
+            payloadOffset = offset + 12;
+            payloadLength = declaredLength - 4;
+        } else {
+            payloadOffset = offset + 8;
+            payloadLength = declaredLength;
+        }
+        if (payloadLength < 0 || payloadOffset + payloadLength * 2 != offset + hexLength) {
+            return reset();
+        }
+
+        ensureCapacity(length + payloadLength);
+        for (int i = 0; i < payloadLength; i++) {
+            int value = decodeByte(hex, payloadOffset + i * 2);
+            if (value < 0) {
+                return reset();
+            }
+            message[length++] = (byte) value;
+        }
+        messageId = packetMessageId;
+
+        if (flag == FLAG_MORE_PACKETS) {
+            return false;
+        }
+        if (expectedLength >= 0 && expectedLength != length) {
+            return reset();
+        }
+        complete = true;
+        return true;
+    }
+
+    public byte[] message() {
+        return message;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Message id of the last packet of the message.
+    public int messageId() {
+        return messageId;
+    }
+
+    private boolean reset() {
+        length = 0;
+        expectedLength = -1;
+        complete = false;
+        return false;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > message.length) {
+            message = Arrays.copyOf(message, Math.max(capacity, message.length * 2));
+        }
+    }
+
+    private static int decodeByte(byte[] hex, int pos) {
+        int hi = hex[pos];
+        int lo = hex[pos + 1];
+        if (hi < 0 || lo < 0) {
+            return -1;
+        }
+        int h = HEX_VALUES[hi];
+        int l = HEX_VALUES[lo];
+        if (h < 0 || l < 0) {
+            return -1;
+        }
+        return (h << 4) | l;
+    }
+}
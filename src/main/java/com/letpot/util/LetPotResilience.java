@@ -0,0 +1,125 @@
+package com.letpot.util;
+
+import com.letpot.exception.LetPotRejectedException;
+import com.letpot.model.LetPotResilienceConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Guards calls to one remote service, the LetPot REST API or the broker: a token bucket per account,
+ * one circuit breaker for the service, and the backoff schedule for retries. Everything on the call
+ * path is a map lookup and a few CAS operations.
+ */
+public class LetPotResilience {
+
+    // Buckets that have been full this long are dropped; a full bucket behaves exactly like a new one.
+    private static final long BUCKET_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final LetPotResilienceConfig config;
+    private final String serviceName;
+    private final LetPotCircuitBreaker circuitBreaker;
+    private final Map<String, LetPotTokenBucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder circuitRejected = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+
+    public LetPotResilience(LetPotResilienceConfig config, String serviceName) {
+        this.config = config;
+        this.serviceName = serviceName;
+        this.circuitBreaker = new LetPotCircuitBreaker(config.getFailureThreshold(), config.getOpenDuration().toNanos());
+    }
+
+    /**
+     * Admits one call for the account, or throws LetPotRejectedException. The returned permit must be
+     * passed to {@link #onSuccess} or {@link #onFailure} once the call's outcome is known.
+     */
+    public long acquire(String account) {
+        acquireRate(account);
+        return acquireCircuit();
+    }
+
+    // Takes one token from the account's bucket, or throws LetPotRejectedException. For a batch of calls
+    // that counts as one, followed by acquireCircuit() per call.
+    public void acquireRate(String account) {
+        if (config.getPermitsPerSecond() > 0 && !bucket(account).tryAcquire()) {
+            rateLimited.increment();
+            // The account key is left out: for some calls it identifies the user in logs.
+            throw new LetPotRejectedException("Rate limit for " + serviceName + " calls exceeded");
+        }
+    }
+
+    // Admits one call through the circuit breaker only; the permit is settled as for acquire().
+    public long acquireCircuit() {
+        long permit = circuitBreaker.acquire();
+        if (permit == LetPotCircuitBreaker.REJECTED) {
+            circuitRejected.increment();
+            throw new LetPotRejectedException("Circuit for " + serviceName + " is open after repeated failures");
+        }
+        return permit;
+    }
+
+    public void onSuccess(long permit) {
+        circuitBreaker.onSuccess(permit);
+    }
+
+    public void onFailure(long permit) {
+        circuitBreaker.onFailure(permit);
+    }
+
+    /**
+     * Delay before the given retry (1 for the first), drawn uniformly up to the exponential backoff
+     * ("full jitter") so that clients failing together do not retry together. A server-requested delay
+     * is honored up to maxBackoff.
+     */
+    public long backoffNanos(int retry, long minimumNanos) {
+        retries.increment();
+        long max = config.getMaxBackoff().toNanos();
+        long ceiling = Math.min(max, config.getInitialBackoff().toNanos() << Math.min(retry - 1, 30));
+        long jittered = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.min(max, Math.max(jittered, minimumNanos));
+    }
+
+    public LetPotResilienceConfig getConfig() {
+        return config;
+    }
+
+    public LetPotCircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    public long getCircuitRejectedCount() {
+        return circuitRejected.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public int getBucketCount() {
+        return buckets.size();
+    }
+
+    private LetPotTokenBucket bucket(String account) {
+        long now = System.nanoTime();
+        long lastSweep = lastSweepNanos.get();
+        if (now - lastSweep > BUCKET_IDLE_NANOS && lastSweepNanos.compareAndSet(lastSweep, now)) {
+            buckets.values().removeIf(idle -> idle.isFullSince(now, BUCKET_IDLE_NANOS));
+        }
+        LetPotTokenBucket bucket = buckets.get(account);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(account,
+                    a -> new LetPotTokenBucket(config.getPermitsPerSecond(), config.getBurst()));
+        }
+        return bucket;
+    }
+}
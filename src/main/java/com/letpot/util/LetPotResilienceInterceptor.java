@@ -0,0 +1,123 @@
+package com.letpot.util;
+
+import com.letpot.client.Idempotent;
+import com.letpot.exception.LetPotRejectedException;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Invocation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Applies LetPotResilience to REST calls: rate limits per account, fails fast while the API's circuit is
+// open, and retries idempotent calls after I/O errors, 429 and 5xx responses.
+public class LetPotResilienceInterceptor implements Interceptor {
+
+    private final LetPotResilience resilience;
+
+    public LetPotResilienceInterceptor(LetPotResilience resilience) {
+        this.resilience = resilience;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Invocation invocation = request.tag(Invocation.class);
+        String account = account(request, invocation);
+        int maxAttempts = isIdempotent(request, invocation) ? resilience.getConfig().getMaxAttempts() : 1;
+
+        IOException failure = null;
+        for (int attempt = 1; ; attempt++) {
+            long permit;
+            try {
+                permit = resilience.acquire(account);
+            } catch (LetPotRejectedException e) {
+                // Out of budget for retries: report the rejection along with the failure that led to it.
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                resilience.onFailure(permit);
+                if (attempt >= maxAttempts || chain.call().isCanceled()) {
+                    throw e;
+                }
+                failure = e;
+                sleep(resilience.backoffNanos(attempt, 0));
+                continue;
+            }
+            int code = response.code();
+            if (code != 429 && code < 500) {
+                resilience.onSuccess(permit);
+                return response;
+            }
+            resilience.onFailure(permit);
+            if (attempt >= maxAttempts) {
+                return response;
+            }
+            long retryAfterNanos = retryAfterNanos(response);
+            response.close();
+            failure = new IOException("HTTP " + code + " from " + request.url().encodedPath());
+            sleep(resilience.backoffNanos(attempt, retryAfterNanos));
+        }
+    }
+
+    // Rate limits apply per LetPot account: the login email, or the user id in the path or, for token refresh,
+    // in the request tag. Never the refresh token, which is a secret and changes on every rotation.
+    private static String account(Request request, Invocation invocation) {
+        if (invocation == null) {
+            return request.url().host();
+        }
+        List<?> arguments = invocation.arguments();
+        switch (invocation.method().getName()) {
+            case "login":
+                Object email = ((Map<?, ?>) arguments.get(0)).get("email");
+                return email == null ? "" : email.toString().toLowerCase(Locale.ROOT);
+            case "refreshToken":
+            case "getDevices":
+            case "getDevicesStream":
+                return String.valueOf(arguments.get(1));
+            default:
+                return request.url().host();
+        }
+    }
+
+    private static boolean isIdempotent(Request request, Invocation invocation) {
+        String method = request.method();
+        if (method.equals("GET") || method.equals("HEAD") || method.equals("PUT") || method.equals("DELETE")) {
+            return true;
+        }
+        return invocation != null && invocation.method().isAnnotationPresent(Idempotent.class);
+    }
+
+    private static long retryAfterNanos(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            // HTTP-date form; fall back to our own backoff.
+            return 0;
+        }
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off before a retry");
+        }
+    }
+}
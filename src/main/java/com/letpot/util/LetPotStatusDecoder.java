@@ -0,0 +1,71 @@
+package com.letpot.util;
+
+import com.letpot.model.LetPotDeviceStatus;
+
+import java.util.Arrays;
+
+// Decodes ISE status reports. Modeled on convert_hex_to_status in python-letpot's ISEConverter: the
+// payload starts with 98 ('b'), 1 and mirrors the field order of the update-status command.
+public final class LetPotStatusDecoder {
+
+    public static final int STATUS_PREFIX = 98;
+    public static final int STATUS_TYPE = 1;
+    private static final int MIN_STATUS_LENGTH = 10;
+
+    private LetPotStatusDecoder() {
+    }
+
+    public static boolean isStatus(byte[] message, int length) {
+        return length >= MIN_STATUS_LENGTH && message[0] == STATUS_PREFIX && message[1] == STATUS_TYPE;
+    }
+
+    public static LetPotDeviceStatus decode(String deviceId, int messageId, byte[] message, int length) {
+        if (!isStatus(message, length)) {
+            throw new IllegalArgumentException("Not a LetPot status message");
+        }
+        return new LetPotDeviceStatus(
+                deviceId,
+                messageId,
+                System.currentTimeMillis(),
+                pumpMode(message),
+                isPumpCycleOn(message),
+                pumpDurationSeconds(message),
+                pumpCycleOnSeconds(message),
+                pumpCycleOffSeconds(message),
+                Arrays.copyOf(message, length));
+    }
+
+    // Single fields of a status report that passed isStatus, read without decoding the whole report.
+    public static int pumpMode(byte[] message) {
+        return message[2] & 0xFF;
+    }
+
+    public static boolean isPumpCycleOn(byte[] message) {
+        return message[3] != 0;
+    }
+
+    public static int pumpDurationSeconds(byte[] message) {
+        return readUnsignedShort(message, 4);
+    }
+
+    public static int pumpCycleOnSeconds(byte[] message) {
+        return readUnsignedShort(message, 6);
+    }
+
+    public static int pumpCycleOffSeconds(byte[] message) {
+        return readUnsignedShort(message, 8);
+    }
+
+    // Cheap change check against the last decoded status, so unchanged reports cost no allocation.
+    public static boolean sameState(LetPotDeviceStatus previous, byte[] message, int length) {
+        if (previous == null) {
+            return false;
+        }
+        byte[] raw = previous.getRaw();
+        return Arrays.equals(raw, 0, raw.length, message, 0, length);
+    }
+
+    private static int readUnsignedShort(byte[] message, int offset) {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+}
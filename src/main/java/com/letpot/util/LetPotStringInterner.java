@@ -0,0 +1,71 @@
+package com.letpot.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free intern table for low-cardinality values such as device models and firmware versions.
+ * Lookups take the parser's char buffer directly, so a value seen before costs no allocation. When the
+ * probed slots are taken by other values, the string is returned uninterned rather than evicting anything.
+ */
+public final class LetPotStringInterner {
+
+    private static final int MAX_PROBES = 8;
+
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+
+    public LetPotStringInterner(int capacity) {
+        int size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity - 1)) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public String intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[offset + i];
+        }
+        // Same hash as String.hashCode(), so a stored string can be compared cheaply before its chars.
+        int index = spread(hash) & mask;
+        String created = null;
+        for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+            String existing = table.get(index);
+            if (existing == null) {
+                if (created == null) {
+                    created = new String(chars, offset, length);
+                }
+                if (table.compareAndSet(index, null, created)) {
+                    return created;
+                }
+                existing = table.get(index);
+            }
+            if (existing.hashCode() == hash && matches(existing, chars, offset, length)) {
+                return existing;
+            }
+        }
+        return created != null ? created : new String(chars, offset, length);
+    }
+
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        return intern(value.toCharArray(), 0, value.length());
+    }
+
+    private static boolean matches(String value, char[] chars, int offset, int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,146 @@
+package com.letpot.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel: scheduling and cancelling are O(1) regardless of how many timeouts are pending, at
+ * the cost of tick-sized precision. {@link #schedule} may be called from any thread; {@link #advance} must
+ * only be called by the single thread that drives the wheel.
+ */
+public final class LetPotTimerWheel<T> {
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket<T>[] buckets;
+    private final long startNanos;
+    // New timeouts are handed over here and placed in a bucket by the driving thread.
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public LetPotTimerWheel(long tickNanos, int wheelSize, long startNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket<>();
+        }
+        this.startNanos = startNanos;
+    }
+
+    public Timeout<T> schedule(T task, long deadlineNanos) {
+        Timeout<T> timeout = new Timeout<>(task, deadlineNanos);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    // Expires every tick that ended at or before nowNanos, passing due, uncancelled timeouts to the consumer.
+    public void advance(long nowNanos, Consumer<Timeout<T>> expired) {
+        while (nextTickNanos() - nowNanos <= 0) {
+            transferPending();
+            buckets[(int) (tick & mask)].expire(tick, expired);
+            tick++;
+        }
+    }
+
+    // System.nanoTime() at which the current tick ends.
+    public long nextTickNanos() {
+        return startNanos + (tick + 1) * tickNanos;
+    }
+
+    private void transferPending() {
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Deadlines already in the past land in the current tick.
+            long dueTick = Math.max(tick, (timeout.deadlineNanos - startNanos) / tickNanos);
+            timeout.dueTick = dueTick;
+            buckets[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    public static final class Timeout<T> {
+        private final T task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+        private long dueTick;
+        private Timeout<T> next;
+        private Timeout<T> prev;
+
+        private Timeout(T task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public T getTask() {
+            return task;
+        }
+
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+
+        // Cancelled timeouts are dropped when their bucket is next visited.
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final class Bucket<T> {
+        private Timeout<T> head;
+        private Timeout<T> tail;
+
+        void add(Timeout<T> timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void expire(long tick, Consumer<Timeout<T>> expired) {
+            Timeout<T> timeout = head;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                // Timeouts more than one rotation out stay until the wheel comes round to their tick.
+                if (timeout.cancelled || timeout.dueTick <= tick) {
+                    remove(timeout);
+                    if (!timeout.cancelled) {
+                        expired.accept(timeout);
+                    }
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout<T> timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.letpot.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket in its GCRA form: the whole state is the time at which the bucket would be
+ * full again, advanced by one permit interval per call with a CAS.
+ */
+public final class LetPotTokenBucket {
+
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final AtomicLong fullAtNanos = new AtomicLong(System.nanoTime());
+
+    public LetPotTokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("permitsPerSecond and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / permitsPerSecond));
+        this.capacityNanos = intervalNanos * burst;
+    }
+
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long next = (fullAt - now > 0 ? fullAt : now) + intervalNanos;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAtNanos.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    // True if no permit has been taken for long enough that the bucket has been full for at least the given time.
+    public boolean isFullSince(long nowNanos, long nanos) {
+        return nowNanos - fullAtNanos.get() >= nanos;
+    }
+}
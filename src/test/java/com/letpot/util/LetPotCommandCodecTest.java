@@ -0,0 +1,122 @@
+package com.letpot.util;
+
+import com.letpot.model.LetPotDeviceCommand;
+import com.letpot.model.LetPotPumpCommand;
+import com.letpot.model.LetPotStatusRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LetPotCommandCodecTest {
+
+    @Test
+    void pumpOnRoundTrips() {
+        byte[] bytes = LetPotCommandCodec.toBytes(LetPotPumpCommand.on(300));
+
+        assertArrayEquals(pumpBytes(1, 0, 300, 0, 0), bytes);
+        assertEquals(LetPotPumpCommand.on(300), decode(bytes));
+    }
+
+    @Test
+    void pumpOffRoundTrips() {
+        byte[] bytes = LetPotCommandCodec.toBytes(LetPotPumpCommand.off());
+
+        assertArrayEquals(pumpBytes(0, 0, 0, 0, 0), bytes);
+        assertEquals(LetPotPumpCommand.off(), decode(bytes));
+    }
+
+    @Test
+    void cycleModeRoundTrips() {
+        LetPotPumpCommand cycle = LetPotPumpCommand.cycle(7200, 900, 1800);
+        byte[] bytes = LetPotCommandCodec.toBytes(cycle);
+
+        assertArrayEquals(pumpBytes(1, 1, 7200, 900, 1800), bytes);
+        assertEquals(cycle, decode(bytes));
+    }
+
+    @Test
+    void statusRequestRoundTrips() {
+        byte[] bytes = LetPotCommandCodec.toBytes(LetPotStatusRequest.INSTANCE);
+
+        assertArrayEquals(new byte[] {97, 1}, bytes);
+        assertSame(LetPotStatusRequest.INSTANCE, decode(bytes));
+    }
+
+    @Test
+    void decodedWireBytesEncodeBackIdentically() {
+        byte[][] messages = {
+                pumpBytes(1, 0, 60, 0, 0),
+                pumpBytes(1, 0, 0xFFFF, 0, 0),
+                pumpBytes(0, 0, 0, 0, 0),
+                pumpBytes(1, 1, 3600, 60, 0xFFFF),
+                {97, 1},
+        };
+        for (byte[] message : messages) {
+            assertArrayEquals(message, LetPotCommandCodec.toBytes(decode(message)));
+        }
+    }
+
+    @Test
+    void cachedCommandsAreReturnedAsIs() {
+        assertSame(LetPotPumpCommand.on(60), decode(pumpBytes(1, 0, 60, 0, 0)));
+        assertSame(LetPotPumpCommand.off(), decode(pumpBytes(0, 0, 0, 0, 0)));
+        assertSame(LetPotStatusRequest.INSTANCE, decode(new byte[] {97, 1}));
+
+        assertSame(LetPotCommandCodec.toBytes(LetPotPumpCommand.on(60)), LetPotCommandCodec.toBytes(LetPotPumpCommand.on(60)));
+        assertSame(LetPotCommandCodec.toBytes(LetPotPumpCommand.off()), LetPotCommandCodec.toBytes(LetPotPumpCommand.off()));
+        assertSame(LetPotCommandCodec.toBytes(LetPotStatusRequest.INSTANCE),
+                LetPotCommandCodec.toBytes(LetPotStatusRequest.INSTANCE));
+    }
+
+    @Test
+    void encodeWritesExactlyEncodedLengthAtOffset() {
+        LetPotDeviceCommand[] commands = {
+                LetPotPumpCommand.on(45), LetPotPumpCommand.cycle(600, 30, 90), LetPotStatusRequest.INSTANCE
+        };
+        for (LetPotDeviceCommand command : commands) {
+            int length = LetPotCommandCodec.encodedLength(command);
+            byte[] buffer = new byte[length + 10];
+            Arrays.fill(buffer, (byte) 0x5A);
+
+            int written = LetPotCommandCodec.encode(command, buffer, 3);
+
+            assertEquals(length, written);
+            assertArrayEquals(LetPotCommandCodec.toBytes(command), Arrays.copyOfRange(buffer, 3, 3 + length));
+            for (int i = 0; i < buffer.length; i++) {
+                if (i < 3 || i >= 3 + length) {
+                    assertEquals((byte) 0x5A, buffer[i], "byte " + i + " outside the command was written");
+                }
+            }
+        }
+    }
+
+    @Test
+    void encodeRejectsTooSmallBuffer() {
+        assertThrows(IllegalArgumentException.class,
+                () -> LetPotCommandCodec.encode(LetPotPumpCommand.off(), new byte[LetPotCommandCodec.PUMP_COMMAND_LENGTH], 1));
+    }
+
+    private static LetPotDeviceCommand decode(byte[] message) {
+        return LetPotCommandCodec.decode(message, 0, message.length);
+    }
+
+    private static byte[] pumpBytes(int on, int cycleOn, int duration, int cycleOnSeconds, int cycleOffSeconds) {
+        byte[] bytes = new byte[LetPotCommandCodec.PUMP_COMMAND_LENGTH];
+        bytes[0] = 65;
+        bytes[1] = 2;
+        bytes[2] = (byte) on;
+        bytes[3] = (byte) cycleOn;
+        bytes[4] = (byte) (duration >>> 8);
+        bytes[5] = (byte) duration;
+        bytes[6] = (byte) (cycleOnSeconds >>> 8);
+        bytes[7] = (byte) cycleOnSeconds;
+        bytes[8] = (byte) (cycleOffSeconds >>> 8);
+        bytes[9] = (byte) cycleOffSeconds;
+        return bytes;
+    }
+}
@@ -0,0 +1,131 @@
+package com.letpot.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LetPotCommandJournalTest {
+
+    private static final int CAPACITY = 64 * 1024;
+    private static final String USER = "user-1";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopenKeepsCommandsBeforeTruncatedTail() throws IOException {
+        Path file = dir.resolve("journal");
+        try (LetPotCommandJournal journal = open(file, CAPACITY)) {
+            for (int i = 1; i <= 3; i++) {
+                journal.append(USER, "a@b.c", "dev-" + i, null, command(i));
+            }
+        }
+        // A crash while the last record was written: the file ends partway through it.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(recordOffsets(file).get(2) + 10);
+        }
+
+        try (LetPotCommandJournal journal = open(file, CAPACITY)) {
+            assertEquals(List.of(1L, 2L), seqs(journal));
+            assertEquals(3, journal.append(USER, "a@b.c", "dev-4", null, command(4)));
+        }
+        try (LetPotCommandJournal journal = open(file, CAPACITY)) {
+            assertEquals(List.of(1L, 2L, 3L), seqs(journal));
+            assertArrayEquals(command(4), journal.unacked(USER).get(2).getCommand());
+        }
+    }
+
+    @Test
+    void reopenDropsEverythingFromCorruptedRecord() throws IOException {
+        Path file = dir.resolve("journal");
+        try (LetPotCommandJournal journal = open(file, CAPACITY)) {
+            for (int i = 1; i <= 3; i++) {
+                journal.append(USER, "a@b.c", "dev-" + i, null, command(i));
+            }
+        }
+        int second = recordOffsets(file).get(1);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, second + 12);
+            b.put(0, (byte) ~b.get(0));
+            channel.write(b.rewind(), second + 12);
+        }
+
+        try (LetPotCommandJournal journal = open(file, CAPACITY)) {
+            assertEquals(List.of(1L), seqs(journal));
+            // Same size as the damaged record, so it overwrites exactly that one.
+            assertEquals(2, journal.append(USER, "a@b.c", "dev-5", null, command(5)));
+        }
+        // The intact record after the damaged one must not come back.
+        try (LetPotCommandJournal journal = open(file, CAPACITY)) {
+            assertEquals(List.of(1L, 2L), seqs(journal));
+            assertEquals("dev-5", journal.unacked(USER).get(1).getDeviceId());
+            assertEquals(3, journal.append(USER, "a@b.c", "dev-6", null, command(6)));
+        }
+    }
+
+    @Test
+    void coalesceRetirementSurvivesCompaction() throws IOException {
+        Path file = dir.resolve("journal");
+        long last;
+        try (LetPotCommandJournal journal = open(file, 4096)) {
+            journal.append(USER, "a@b.c", "dev-2", null, command(0));
+            last = 0;
+            // Far more than fits in 4 KB, so the journal compacts several times.
+            for (int i = 1; i <= 200; i++) {
+                last = journal.append(USER, "a@b.c", "dev-1", "pump", command(i));
+            }
+            assertEquals(2, journal.size());
+        }
+
+        try (LetPotCommandJournal journal = open(file, 4096)) {
+            assertEquals(List.of(1L, last), seqs(journal));
+            assertArrayEquals(command(200), journal.unacked(USER).get(1).getCommand());
+            // The reopened journal still knows which entry holds the key.
+            long next = journal.append(USER, "a@b.c", "dev-1", "pump", command(201));
+            assertEquals(List.of(1L, next), seqs(journal));
+        }
+        try (LetPotCommandJournal journal = open(file, 4096)) {
+            assertEquals(2, journal.size());
+            assertArrayEquals(command(201), journal.unacked(USER).get(1).getCommand());
+        }
+    }
+
+    private static LetPotCommandJournal open(Path file, int capacity) {
+        return new LetPotCommandJournal(file, capacity, Duration.ofMillis(5));
+    }
+
+    private static byte[] command(int n) {
+        return ByteBuffer.allocate(4).putInt(n).array();
+    }
+
+    private static List<Long> seqs(LetPotCommandJournal journal) {
+        List<Long> seqs = new ArrayList<>();
+        journal.unacked(USER).forEach(entry -> seqs.add(entry.getSeq()));
+        return seqs;
+    }
+
+    // Start of each record: int length | type and body | int crc32c.
+    private static List<Integer> recordOffsets(Path file) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        while (offset + 4 <= log.limit() && log.getInt(offset) > 0) {
+            offsets.add(offset);
+            offset += 4 + log.getInt(offset) + 4;
+        }
+        return offsets;
+    }
+}
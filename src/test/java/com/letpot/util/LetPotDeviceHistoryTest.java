@@ -0,0 +1,144 @@
+package com.letpot.util;
+
+import com.letpot.model.LetPotDailyWatering;
+import com.letpot.model.LetPotDeviceEvent;
+import com.letpot.model.LetPotHistoryConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LetPotDeviceHistoryTest {
+
+    private static final String DEVICE = "LPH21ABCD";
+    private static final long HOUR = 3_600_000;
+
+    @TempDir
+    Path dir;
+
+    // Recent enough to stay within the retention.
+    private final LocalDate day = LocalDate.now(ZoneOffset.UTC).minusDays(3);
+
+    @Test
+    void reopenDropsTornEvent() throws IOException {
+        try (LetPotDeviceHistory history = open()) {
+            history.append(pumpOn(at(day, 10 * HOUR)));
+            history.append(pumpOn(at(day, 11 * HOUR)));
+        }
+        Path segment = onlySegment();
+        int end = lastNonZeroByte(segment) + 1;
+        try (LetPotDeviceHistory history = open()) {
+            history.append(pumpOn(at(day, 12 * HOUR)));
+        }
+        // A crash before the type byte, which is written last, made it to disk.
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(1), end);
+        }
+
+        try (LetPotDeviceHistory history = open()) {
+            assertEquals(List.of(at(day, 10 * HOUR), at(day, 11 * HOUR)), timestamps(history));
+            history.append(pumpOff(at(day, 13 * HOUR)));
+        }
+        try (LetPotDeviceHistory history = open()) {
+            assertEquals(List.of(at(day, 10 * HOUR), at(day, 11 * HOUR), at(day, 13 * HOUR)), timestamps(history));
+            List<LetPotDeviceEvent> events = history.query(DEVICE, at(day, 0), at(day, 24 * HOUR));
+            assertEquals(0, events.get(2).getPumpMode());
+        }
+    }
+
+    @Test
+    void dailyWateringSplitsRunsAtMidnight() {
+        try (LetPotDeviceHistory history = open()) {
+            // Switched on the evening before and off an hour into the day.
+            history.recordStatus(DEVICE, at(day, -HOUR), 1, false, 0, 0, 0);
+            history.recordStatus(DEVICE, at(day, HOUR), 0, false, 0, 0, 0);
+            // An hour's run starting half an hour before the next day, without a report that it stopped.
+            history.recordStatus(DEVICE, at(day, 23 * HOUR + HOUR / 2), 1, false, 3600, 0, 0);
+            history.flush();
+
+            List<LetPotDailyWatering> watering = history.dailyWatering(DEVICE, day, day.plusDays(1));
+
+            assertEquals(2, watering.size());
+            assertEquals(day, watering.get(0).getDate());
+            assertEquals(3600 + 1800, watering.get(0).getWateringSeconds());
+            // The run carried over from the evening before started on that day.
+            assertEquals(1, watering.get(0).getPumpStarts());
+            assertEquals(day.plusDays(1), watering.get(1).getDate());
+            assertEquals(1800, watering.get(1).getWateringSeconds());
+            assertEquals(0, watering.get(1).getPumpStarts());
+        }
+    }
+
+    @Test
+    void dailyWateringCountsCycleModeAtItsDutyCycle() {
+        try (LetPotDeviceHistory history = open()) {
+            // Two hours of 15 minutes on, 45 off, from 23:00.
+            history.recordStatus(DEVICE, at(day, 23 * HOUR), 1, true, 7200, 900, 2700);
+            history.flush();
+
+            List<LetPotDailyWatering> watering = history.dailyWatering(DEVICE, day, day.plusDays(1));
+
+            assertEquals(900, watering.get(0).getWateringSeconds());
+            assertEquals(900, watering.get(1).getWateringSeconds());
+        }
+    }
+
+    private LetPotDeviceHistory open() {
+        LetPotHistoryConfig config = new LetPotHistoryConfig();
+        config.setDirectory(dir);
+        config.setSegmentCapacityBytes(64 * 1024);
+        return new LetPotDeviceHistory(config);
+    }
+
+    private static long at(LocalDate day, long millisIntoDay) {
+        return day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() + millisIntoDay;
+    }
+
+    // Every field non-zero, so the last non-zero byte of a segment ends its last event. Its last byte reads as a
+    // status type, so a shorter event written over a torn one leaves something that decodes unless it is cleared.
+    private static LetPotDeviceEvent pumpOn(long millis) {
+        return LetPotDeviceEvent.status(DEVICE, millis, 1, true, 600, 30, 1);
+    }
+
+    private static LetPotDeviceEvent pumpOff(long millis) {
+        return LetPotDeviceEvent.status(DEVICE, millis, 0, false, 0, 0, 0);
+    }
+
+    private List<Long> timestamps(LetPotDeviceHistory history) {
+        return history.query(DEVICE, Long.MIN_VALUE, Long.MAX_VALUE).stream()
+                .map(LetPotDeviceEvent::getTimestampMillis)
+                .collect(Collectors.toList());
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.filter(file -> file.getFileName().toString().endsWith(".seg"))
+                    .collect(Collectors.toList());
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private static int lastNonZeroByte(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            last--;
+        }
+        assertTrue(last > 0);
+        return last;
+    }
+}